@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.dataintegration.CandidateIndex;
+import org.pentaho.dataintegration.DetectionEngine;
+import org.pentaho.dataintegration.DuplicateDetector;
+import org.pentaho.dataintegration.MinHashIndex;
+import org.pentaho.dataintegration.QGramIndex;
+import org.pentaho.dataintegration.VerificationPolicy;
+
+/**
+ * Whole detection over a synthetic dataset: loading the keys, sorting them and running both passes, as the step
+ * does once all rows were read, comparing the rows through MinHash buckets as they are loaded, or joining them
+ * through the q-gram index. Each invocation detects the duplicates of all the rows, so the allocation reported by
+ * the GC profiler per operation (gc.alloc.rate.norm) divided by rows gives the bytes per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms8g", "-Xmx8g", "-XX:MaxDirectMemorySize=4g" })
+public class DetectionBenchmark {
+
+	@Param({ "10000", "100000", "1000000", "5000000" })
+	public int rows;
+
+	@Param({ "0.1", "0.3" })
+	public double duplicateRate;
+
+	@Param({ "24", "64" })
+	public int length;
+
+	@Param({ "0.8" })
+	public double threshold;
+
+	@Param({ "4" })
+	public int windowSize;
+
+	@Param({ "4" })
+	public int maxWindowSize;
+
+	@Param({ "1" })
+	public int threads;
+
+	@Param({ "sortedNeighbourhood", "minHash", "allPairs" })
+	public String engine;
+
+	@Param({ "all" })
+	public String verification;
+
+	private String[] keys;
+	private DuplicateDetector detector;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		keys = SyntheticDataset.generate(rows, duplicateRate, length, 42);
+	}
+
+	@TearDown(Level.Invocation)
+	public void close() {
+		if (detector != null)
+			detector.close();
+		detector = null;
+	}
+
+	@Benchmark
+	public int detect() {
+		CandidateIndex candidates = null;
+		if (DetectionEngine.getFromCode(engine) == DetectionEngine.MIN_HASH)
+			candidates = new MinHashIndex(3, 8, 4);
+		else if (DetectionEngine.getFromCode(engine) == DetectionEngine.ALL_PAIRS)
+			candidates = new QGramIndex(threshold, 3);
+		detector = new DuplicateDetector(threshold, windowSize, maxWindowSize, threads, 0, null, candidates);
+		detector.setVerification(VerificationPolicy.getFromCode(verification), 8);
+		for (int i = 0; i < keys.length; i++)
+			detector.add(keys[i]);
+		detector.detect();
+		int groups = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (detector.getGroups().representative(i) == i)
+				groups++;
+		}
+		return groups;
+	}
+}
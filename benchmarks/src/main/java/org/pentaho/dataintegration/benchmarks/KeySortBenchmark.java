@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.benchmarks;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.dataintegration.KeyArena;
+
+/**
+ * Sort of the comparison keys for the passes: the radix sort of the arena forwards, backwards and both ways at
+ * once, against a sort of the row ids on Java Strings with a comparator, as the step sorted its rows before the
+ * keys moved to the arena. Both ways at once only gains with at least two cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms8g", "-Xmx8g", "-XX:MaxDirectMemorySize=4g" })
+public class KeySortBenchmark {
+
+	@Param({ "100000", "1000000", "5000000" })
+	public int rows;
+
+	@Param({ "0.3" })
+	public double duplicateRate;
+
+	@Param({ "24", "64" })
+	public int length;
+
+	private String[] keys;
+	private KeyArena arena;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		keys = SyntheticDataset.generate(rows, duplicateRate, length, 42);
+		arena = new KeyArena();
+		for (int i = 0; i < keys.length; i++)
+			arena.add(keys[i]);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		arena.close();
+	}
+
+	@Benchmark
+	public int[] forward() {
+		return arena.sort(false);
+	}
+
+	@Benchmark
+	public int[] reversed() {
+		return arena.sort(true);
+	}
+
+	@Benchmark
+	public int[][] bothWays() {
+		return arena.sortBothWays();
+	}
+
+	@Benchmark
+	public Integer[] strings() {
+		Integer[] ids = new Integer[keys.length];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = i;
+		Arrays.sort(ids, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return keys[a].compareTo(keys[b]);
+			}
+		});
+		return ids;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.dataintegration.KeyArena;
+import org.pentaho.dataintegration.SimilarityKernel;
+
+/**
+ * Alignment of pairs of keys as done in the passes: neighbours in key order, compared against the matching
+ * threshold, so that most pairs are rejected early and the near duplicates are aligned completely. The window
+ * benchmark aligns each key at once against its next neighbours, as the passes do with the groups of a window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimilarityKernelBenchmark {
+
+	private static final int PAIRS = 1 << 16;
+	private static final int WINDOW = 4; // Number of neighbours aligned with each key by the window benchmark
+
+	@Param({ "16", "64", "256" })
+	public int length;
+
+	@Param({ "0.8" })
+	public double threshold;
+
+	@Param({ "0.3" })
+	public double duplicateRate;
+
+	private KeyArena keys;
+	private String[] strings;
+	private int[] first;
+	private int[] second;
+	private int[] order;
+	private final int[] window = new int[WINDOW];
+	private final double[] similarities = new double[WINDOW];
+	private SimilarityKernel kernel;
+	private int pair;
+
+	@Setup
+	public void setUp() {
+		strings = SyntheticDataset.generate(PAIRS + WINDOW, duplicateRate, length, 42);
+		keys = new KeyArena();
+		for (String key : strings)
+			keys.add(key);
+		// Pairs of neighbours in key order, like the rows of a window
+		order = keys.sort(false);
+		first = new int[PAIRS];
+		second = new int[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			first[i] = order[i];
+			second[i] = order[i + 1];
+		}
+		kernel = SimilarityKernel.forCurrentThread();
+	}
+
+	@TearDown
+	public void tearDown() {
+		keys.close();
+	}
+
+	@Benchmark
+	public double arenaKeys() {
+		int i = pair++ & (PAIRS - 1);
+		return kernel.similarity(keys, first[i], second[i], threshold);
+	}
+
+	@Benchmark
+	public double stringKeys() {
+		int i = pair++ & (PAIRS - 1);
+		return kernel.similarity(strings[first[i]], strings[second[i]], threshold);
+	}
+
+	@Benchmark
+	public int window() {
+		int i = pair++ & (PAIRS - 1);
+		System.arraycopy(order, i + 1, window, 0, WINDOW);
+		return kernel.similarities(keys, order[i], window, WINDOW, threshold, false, similarities);
+	}
+
+	@Benchmark
+	public double exact() {
+		int i = pair++ & (PAIRS - 1);
+		return kernel.similarity(keys, first[i], second[i], Double.NEGATIVE_INFINITY);
+	}
+}
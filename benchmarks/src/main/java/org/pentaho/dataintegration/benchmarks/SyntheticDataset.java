@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Comparison keys generated from a seed, so that every run measures the same data without reading any file.
+ *
+ * Original keys are made of random words, like the concatenated fields of a row, with a length close to the
+ * requested one. A given fraction of the keys are instead copies of an earlier original key with a few random
+ * edits (substitution, insertion, deletion or transposition of characters), about one per 16 characters.
+ */
+public class SyntheticDataset {
+
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+	private static final String VOWELS = "aeiou";
+
+	/**
+	 * Method to generate comparison keys
+	 * @param rows the number of keys
+	 * @param duplicateRate the fraction of keys that are edited copies of an earlier key
+	 * @param length the mean number of characters of a key
+	 * @param seed the seed of the random generator
+	 * @return String array with the keys, in the order of the rows
+	 */
+	public static String[] generate(int rows, double duplicateRate, int length, long seed) {
+		Random random = new Random(seed);
+		String[] keys = new String[rows];
+		int[] originals = new int[rows]; // Rows holding an original key
+		int originalCount = 0;
+		StringBuilder key = new StringBuilder(2 * length);
+		for (int i = 0; i < rows; i++) {
+			key.setLength(0);
+			if (originalCount > 0 && random.nextDouble() < duplicateRate) {
+				key.append(keys[originals[random.nextInt(originalCount)]]);
+				int edits = 1 + random.nextInt(1 + key.length() / 16);
+				for (int e = 0; e < edits; e++)
+					edit(key, random);
+			} else {
+				int target = Math.max(1, length / 2 + random.nextInt(length + 1));
+				while (key.length() < target)
+					appendWord(key, random);
+				originals[originalCount++] = i;
+			}
+			keys[i] = key.toString();
+		}
+		return keys;
+	}
+
+	private static void appendWord(StringBuilder key, Random random) {
+		int syllables = 1 + random.nextInt(3);
+		for (int s = 0; s < syllables; s++) {
+			key.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+			key.append(VOWELS.charAt(random.nextInt(VOWELS.length())));
+		}
+		key.append(' ');
+	}
+
+	private static void edit(StringBuilder key, Random random) {
+		if (key.length() < 2) {
+			key.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+			return;
+		}
+		int position = random.nextInt(key.length() - 1);
+		char letter = LETTERS.charAt(random.nextInt(LETTERS.length()));
+		switch (random.nextInt(4)) {
+			case 0:
+				key.setCharAt(position, letter);
+				break;
+			case 1:
+				key.insert(position, letter);
+				break;
+			case 2:
+				key.deleteCharAt(position);
+				break;
+			default:
+				char swap = key.charAt(position);
+				key.setCharAt(position, key.charAt(position + 1));
+				key.setCharAt(position + 1, swap);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.dataintegration.UnionFind;
+
+/**
+ * Unions and representative lookups of the groups, for one million rows. With a skew of 1 the groups have
+ * about the same size, larger skews concentrate the rows in a few very large groups, as happens with keys
+ * that are mostly empty or share a long prefix.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnionFindBenchmark {
+
+	private static final int ROWS = 1000000;
+
+	@Param({ "1", "3", "8" })
+	public int skew;
+
+	@Param({ "100000" })
+	public int groupCount;
+
+	private int[] groupOf; // Group of each row
+	private int[] previous; // Row merged with each row, the previous row of its group, or -1
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		groupOf = new int[ROWS];
+		previous = new int[ROWS];
+		int[] last = new int[groupCount];
+		Arrays.fill(last, -1);
+		for (int i = 0; i < ROWS; i++) {
+			// Skewed group, a uniform value raised to the skew favours the first groups
+			groupOf[i] = (int) (groupCount * Math.pow(random.nextDouble(), skew));
+			previous[i] = last[groupOf[i]];
+			last[groupOf[i]] = i;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int unionAndRepresentative() {
+		UnionFind groups = new UnionFind(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			groups.add();
+			if (previous[i] >= 0)
+				groups.union(i, previous[i]);
+		}
+		int sum = 0;
+		for (int i = 0; i < ROWS; i++)
+			sum += groups.representative(i);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public int walkMembers() {
+		UnionFind groups = new UnionFind(ROWS);
+		for (int i = 0; i < ROWS; i++) {
+			groups.add();
+			if (previous[i] >= 0)
+				groups.union(i, previous[i]);
+		}
+		int sum = 0;
+		for (int i = 0; i < ROWS; i++) {
+			int representative = groups.representative(i);
+			if (representative != i)
+				continue;
+			for (int member = groups.next(i); member != i; member = groups.next(member))
+				sum += member;
+		}
+		return sum;
+	}
+}
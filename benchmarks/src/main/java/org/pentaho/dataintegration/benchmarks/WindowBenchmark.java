@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.benchmarks;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.dataintegration.WindowBuffer;
+
+/**
+ * Per row overhead of the window of the passes, without any similarity computation: each row walks the whole
+ * window, then either replaces an entry, moves an entry to the front, or opens a new entry and evicts the oldest
+ * one, as decided in advance for all rows. The LinkedList variant reproduces the window the passes used before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WindowBenchmark {
+
+	private static final int ROWS = 1 << 20;
+	private static final int NEW_GROUP = -1;
+
+	@Param({ "4", "16", "64" })
+	public int windowSize;
+
+	@Param({ "0.3" })
+	public double matchRate;
+
+	private int[] hits; // Position in the window matched by each row, or NEW_GROUP
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		hits = new int[ROWS];
+		for (int i = 0; i < ROWS; i++)
+			hits[i] = random.nextDouble() < matchRate ? random.nextInt(windowSize) : NEW_GROUP;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long linkedList() {
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		long sum = 0;
+		for (int i = 0; i < ROWS; i++) {
+			int hit = Math.min(hits[i], queue.size() - 1);
+			for (int j = 0; j < queue.size(); j++)
+				sum += queue.get(j);
+			if (hit < 0) {
+				queue.addFirst(i);
+				if (queue.size() > windowSize)
+					queue.removeLast();
+			} else if ((i & 1) == 0) {
+				queue.set(hit, i);
+			} else {
+				queue.addFirst(queue.remove(hit));
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public long windowBuffer() {
+		WindowBuffer queue = new WindowBuffer(windowSize + 1);
+		long sum = 0;
+		for (int i = 0; i < ROWS; i++) {
+			int hit = Math.min(hits[i], queue.size() - 1);
+			int hitSlot = -1;
+			int position = 0;
+			for (int j = queue.first(); j >= 0; j = queue.next(j), position++) {
+				sum += queue.get(j);
+				if (position == hit)
+					hitSlot = j;
+			}
+			if (hit < 0) {
+				queue.addFirst(i);
+				if (queue.size() > windowSize)
+					queue.removeLast();
+			} else if ((i & 1) == 0) {
+				queue.set(hitSlot, i);
+			} else {
+				queue.moveToFront(hitSlot);
+			}
+		}
+		return sum;
+	}
+}
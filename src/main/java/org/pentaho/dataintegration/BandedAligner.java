@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Alignment of the diagonal band of the edit distance matrix that {@link SimilarityKernel} can hand over to an
+ * implementation computing several cells per instruction. An implementation must compute the same cells with the
+ * same costs as the kernel, so that the distances, and the similarities derived from them, are equal.
+ */
+public interface BandedAligner {
+
+	/**
+	 * @return the smallest band for which this aligner is faster than the kernel
+	 */
+	int getMinimumBand();
+
+	/**
+	 * Method to compute the edit distance between two lower case character sequences within a diagonal band,
+	 * stopping after the first row whose cells all cost more than maxDistance
+	 * @param a char array with the lower case characters of the first string
+	 * @param aLength number of characters of a to compare
+	 * @param b char array with the lower case characters of the second string
+	 * @param bLength number of characters of b to compare
+	 * @param band the number of diagonals computed on each side of the main one, every cell outside costs band + 1
+	 * @param maxDistance the largest distance of interest
+	 * @return int with the cost of the last cell, or the complement (~) of the smallest cost of the row where the
+	 * alignment was stopped
+	 */
+	int distance(char[] a, int aLength, char[] b, int bLength, int band, int maxDistance);
+}
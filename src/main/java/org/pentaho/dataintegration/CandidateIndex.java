@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Index of the comparison keys that finds, as each row is inserted, the rows already inserted worth comparing
+ * with it. Incremental indexes insert the rows as they are added, and the others insert them once all rows were
+ * added, in an order of their own.
+ */
+public interface CandidateIndex {
+
+	/**
+	 * @return true if rows are inserted as they are added, false if the index needs all the rows first
+	 */
+	boolean isIncremental();
+
+	/**
+	 * Method to prepare an index that needs all the rows, once they were added
+	 * @param keys the arena holding the comparison keys of all the rows
+	 * @return int array with the row ids in the order they must be inserted, or null for an incremental index
+	 */
+	int[] prepare(KeyArena keys);
+
+	/**
+	 * Method to insert a row and collect the rows already inserted that may match it, without repetitions
+	 * @param keys the arena holding the comparison keys
+	 * @param id the id of the row
+	 * @return int corresponding to the number of candidates, read with {@link #getCandidate(int)}
+	 */
+	int insert(KeyArena keys, int id);
+
+	/**
+	 * @param i the number of the candidate, from 0
+	 * @return the id of the candidate row
+	 */
+	int getCandidate(int i);
+
+	/**
+	 * @return the estimated number of bytes of the index per row inserted, for the memory budget
+	 */
+	int bytesPerRow();
+
+	/**
+	 * @return the number of candidates returned so far
+	 */
+	long getCollisions();
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free union-find over row ids that several threads can update at the same time.
+ *
+ * A root is always linked under the smaller of the two roots, so the root of a group is its smallest row id
+ * whatever the order in which the unions happen. This keeps the groups, and their representatives, the same
+ * from one run to the next.
+ */
+public class ConcurrentUnionFind {
+
+	private final AtomicIntegerArray parent;
+
+	/**
+	 * @param size the number of elements, from 0 to size - 1
+	 */
+	public ConcurrentUnionFind(int size) {
+		parent = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++)
+			parent.set(i, i);
+	}
+
+	/**
+	 * Method to obtain the representative of the group of an element
+	 * @param x the element
+	 * @return int corresponding to the smallest element of the group
+	 */
+	public int find(int x) {
+		while (true) {
+			int p = parent.get(x);
+			if (p == x)
+				return x;
+			int grandparent = parent.get(p);
+			// Path halving, a failed update only means another thread already moved x closer to the root
+			if (p != grandparent)
+				parent.compareAndSet(x, p, grandparent);
+			x = grandparent;
+		}
+	}
+
+	/**
+	 * Method to merge the groups of two elements
+	 * @param a an element of the first group
+	 * @param b an element of the second group
+	 * @return int corresponding to the representative of the merged group
+	 */
+	public int union(int a, int b) {
+		while (true) {
+			int x = find(a);
+			int y = find(b);
+			if (x == y)
+				return x;
+			if (x > y) {
+				int swap = x;
+				x = y;
+				y = swap;
+			}
+			if (parent.compareAndSet(y, y, x))
+				return x;
+		}
+	}
+}
@@ -18,23 +18,22 @@
  */
 package org.pentaho.dataintegration;
 
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.Locale;
-import java.util.Vector;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
 
-import org.pentaho.di.core.RowMetaAndData;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
-import org.pentaho.di.core.exception.KettlePluginException;
+import org.pentaho.di.core.exception.KettleFileException;
 import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleValueException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
-import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
@@ -44,8 +43,8 @@ import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
-
-import com.wcohen.ss.NeedlemanWunsch;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.dataintegration.DetectionMetrics.Phase;
 
 /**
 	* Describe your step plugin.
@@ -54,10 +53,15 @@ import com.wcohen.ss.NeedlemanWunsch;
 public class DIDuplicateDetection extends BaseStep implements StepInterface {
 	
 	private static Class<?> PKG = DIDuplicateDetectionMeta.class; // for i18n purposes, needed by Translator2!!   $NON-NLS-1$
+	private static final long KEY_BYTES = 40; // Estimated heap of the key index and group of a row
+	private static final long PROGRESS_LOG_NANOS = 10000000000L; // Time between two progress lines of a pass
+	private static final Double SINGLETON_SIMILARITY = Double.valueOf(-1); // Similarity written for rows alone in their group
 	
 	private DIDuplicateDetectionData data;
 	private DIDuplicateDetectionMeta meta;
-	private NeedlemanWunsch nd = new NeedlemanWunsch();
+	private SimilarityKernel kernel;
+	private long readStart; // Value of System.nanoTime() when the first row was read
+	private long passRows; // Rows processed by the passes already run, shown as updated lines in the step status
 	
 	public DIDuplicateDetection( StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta,
 			Trans trans ) {
@@ -76,191 +80,674 @@ public class DIDuplicateDetection extends BaseStep implements StepInterface {
 		meta = (DIDuplicateDetectionMeta) stepMetaInterface;
 		data = (DIDuplicateDetectionData) stepDataInterface;
 
-		return super.init(stepMetaInterface, stepDataInterface);
+		if (!super.init(stepMetaInterface, stepDataInterface))
+			return false;
+		StreamInterface metricsStream = meta.getMetricsStream();
+		if (metricsStream.getStepMeta() == null && !Utils.isEmpty((String) metricsStream.getSubject())) {
+			logError( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.MetricsStep", (String) metricsStream.getSubject() ) );
+			return false;
+		}
+		if (metricsStream.getStepMeta() != null) {
+			// The target stream only receives the metrics row, so the rowsets to every copy of its step are left
+			// out of the rows written with putRow, and the first one receives the row
+			List<RowSet> metricsRowSets = new ArrayList<RowSet>();
+			for (RowSet rowSet : getOutputRowSets()) {
+				if (metricsStream.getStepname().equals(rowSet.getDestinationStepName()))
+					metricsRowSets.add(rowSet);
+			}
+			if (metricsRowSets.isEmpty()) {
+				logError( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.MetricsStep", metricsStream.getStepname() ) );
+				return false;
+			}
+			getOutputRowSets().removeAll(metricsRowSets);
+			data.setMetricsRowSet(metricsRowSets.get(0));
+		}
+		return true;
+	}
+	
+	public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+		data.closeSpillFiles();
+		super.dispose( smi, sdi );
 	}
 
 		public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
 		Object[] r = getRow(); // get row, set busy!
 		if ( r == null ) {
 			// no more input to be expected...
-			detectApproxDups();
-			writeOutput();  
+			if (first) {
+				writeMetrics();
+				setOutputDone();
+				return false;
+			}
+			DetectionMetrics metrics = data.getMetrics();
+			sampleMetrics();
+			long start = metrics.lap(Phase.READ, readStart);
+			if (isStreaming()) {
+				flushWindow();
+				writeReferenceIndex();
+				metrics.lap(Phase.OUTPUT, start);
+			} else {
+				detectApproxDups();
+				// The groups of a stopped detection are incomplete, so no row is written
+				if (isStopped()) {
+					setOutputDone();
+					return false;
+				}
+				start = System.nanoTime();
+				joinReferenceGroups();
+				writeOutput();
+				writeReferenceIndex();
+				metrics.lap(Phase.OUTPUT, start);
+			}
+			metrics.collect(data.getDetector());
+			logMetrics();
+			writeMetrics();
 			setOutputDone();
 			return false;
 		}
 			
 		if (first) {
+			readStart = System.nanoTime();
+			resolveMatchFields();
+			// Blocking keys need the whole input sorted, so they are not used in streaming mode
+			if (isStreaming())
+				data.setBlockingKeys(new int[0][], new int[0][]);
+			else
+				resolveBlockingKeys();
+			// Rows are processed by the thread running the step, which also runs the passes
+			data.setDetector(new DuplicateDetector(meta.getMatchThreshold(), meta.getWindowSize(),
+					meta.getAdaptiveWindow() ? meta.getMaxWindowSize() : meta.getWindowSize(), meta.getThreads(),
+					data.getBlockingFields().length, createFieldwiseSimilarity(), createCandidateIndex()));
+			data.getDetector().setVerification(meta.getVerification(), meta.getVerificationSample());
+			// Written groups are final, so the ids of their rows are given to the next rows
+			data.getDetector().setRecycling(isStreaming());
+			if (!Utils.isEmpty(meta.getReferenceIndex()))
+				openReferenceIndex();
+			kernel = data.getDetector().getKernel();
+			kernel.resetCounters();
+			if ( log.isDetailed() )
+				logDetailed( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.VectorAlignment",
+						String.valueOf(kernel.isVectorized()) ) );
 			data.setOutputRowMeta(getInputRowMeta().clone());
 			meta.getFields(data.getOutputRowMeta(), getStepname(), null, null, this, repository, metaStore);      
+			if (isStreaming())
+				data.setWindow(data.getDetector().createWindow());
+			else {
+				data.buffer = new RowBuffer(getInputRowMeta(), getSpillDirectory());
+				if (meta.getRowsOnDisk())
+					data.buffer.spill();
+			}
 			first = false;
 		}
-		data.buffer.add(r);
 		data.incrementIndex();
 				
-		String data_str = new String();     
-		for (int i = 0; i < getInputRowMeta().getFieldNames().length; i++) {
-			if (getInputRowMeta().getString(r, i) != null)
-				data_str = data_str.concat(getInputRowMeta().getString(r, i));
-			data_str = data_str.concat(" ");
+		StringBuilder key = buildKey(r);
+		int node;
+		if (data.getMatchFunctions() != null)
+			node = data.getDetector().add(key, data.getFieldValues(), buildBlockingKeys(r));
+		else if (data.getBlockingFields().length > 0)
+			node = data.getDetector().add(key, buildBlockingKeys(r));
+		else
+			node = data.getDetector().add(key);
+		if (isStreaming())
+			streamRow(r, node);
+		else {
+			data.buffer.add(r);
+			checkMemoryBudget(r, node);
 		}
-		data.addNode(data_str, data.getIndex());      
 		
 		if ( checkFeedback( getLinesRead() ) ) {
+			sampleMetrics();
 			if ( log.isBasic() )
-				logBasic( BaseMessages.getString( PKG, "ApproxDupDetection.Log.LineNumber" ) + getLinesRead() );
+				logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.LineNumber" ) + getLinesRead() );
 		}
 		return true;
 	}
 	
-	private void detectApproxDups() {
-		double matchThreshold = meta.getMatchThreshold();
-		LinkedList<Node> queue = new LinkedList<Node>();
-		Vector<Node> orderedGraph = new Vector<Node> ();  
-		orderedGraph.addAll(data.getGraph());
-		orderedGraph.sort(null);
-		queue.addFirst(orderedGraph.get(0));
-		
-		// First pass
-		for (int i = 1; i < orderedGraph.size(); i++) {
-			boolean changed = false;
-			Node node = orderedGraph.get(i);
-			for (int j = 0; j < queue.size(); j++) {
-				Node queueNode = queue.get(j);				
-				if (1 - Math.abs(nd.score(node.getData(), queueNode.getData())) /
-						Math.max(node.getData().length(), queueNode.getData().length()) >= matchThreshold) {
-					// Check that all members of the group satisfy the matching threshold to be merged
-					int nodesAboveThreshold = 0;
-					for (int k = 0; k < queueNode.getChildren().size(); k++) {
-						if (1 - Math.abs(nd.score(node.findSet().getData(), 
-								queueNode.getChildren().get(k).getData())) / Math.max(node.findSet().getData().length(), 
-								queueNode.getChildren().get(k).getData().length()) >= matchThreshold)  
-							nodesAboveThreshold++;
-					}
-					if (nodesAboveThreshold == queueNode.getChildren().size()) {
-						queue.set(j, node.union(queueNode));
-						changed = true;
-						break;
-					}
-				}       
-			}     
-			if (!changed) {      
-				queue.addFirst(node.findSet());
-				if (queue.size() > 4) {
-					queue.removeLast();
-				}
-			} 
-		} 
-		
-		Collections.sort(orderedGraph, new Comparator<Node>() {
-			public int compare(Node e1, Node e2) {
-				return e1.getReversedData().compareTo(e2.getReversedData());
-			}});
-		queue.clear();
-		queue.addFirst(orderedGraph.get(0).findSet());
-		
-		// Second pass
-		for (int i = 1; i < orderedGraph.size(); i++) {
-			boolean changed = false;
-			Node node = orderedGraph.get(i);
-			for (int j = 0; j < queue.size(); j++) { // The set match verification is needed in the second pass
-				Node queueNode = queue.get(j);
-				if (node.findSet().equals(queueNode.findSet())) {
-					queue.addFirst(queueNode.findSet());
-					queue.remove(j + 1);
-					changed = true;
-					break;
-				}
-			}     
-			if (! changed) {
-				for (int j = 0; j < queue.size(); j++) {        
-					Node queueNode = queue.get(j);
-					if (1 - Math.abs(nd.score(node.getReversedData(), queueNode.getReversedData())) /
-							Math.max(node.getReversedData().length(), queueNode.getReversedData().length()) >= matchThreshold) {	
-						
-						// Check that all members of the group satisfy the matching threshold to be merged
-						int nodesAboveThreshold = 0;
-						for (int k = 0; k < node.findSet().getChildren().size(); k++) {           
-							if (1 - Math.abs(nd.score(node.findSet().getChildren().get(k).getData(),
-									queueNode.getData())) / Math.max(node.findSet().getChildren().get(k).getData().length(), 
-									queueNode.getData().length()) >= matchThreshold) 
-								nodesAboveThreshold++;
-							else
-								break;
-						}
-						if(nodesAboveThreshold != node.findSet().getChildren().size())
-							continue;
-						
-						if (1 - Math.abs(nd.score(node.findSet().getData(),
-								queueNode.getData())) / Math.max(node.findSet().getData().length(), 
-								queueNode.getData().length()) >= matchThreshold) 
-							nodesAboveThreshold++;
-						else
-							continue;
-						
-						for (int k = 0; k < queueNode.getChildren().size(); k++) {            
-							if (1 - Math.abs(nd.score(node.findSet().getData(), 
-									queueNode.getChildren().get(k).getData())) / Math.max(node.findSet().getData().length(), 
-									queueNode.getChildren().get(k).getData().length()) >= matchThreshold)  
-								nodesAboveThreshold++;
-							else 
-								break;
-						}
-						
-						if (nodesAboveThreshold == node.findSet().getChildren().size() + queueNode.getChildren().size() + 1) {       
-							queue.set(j, node.findSet().union(queueNode));
-							changed = true;
-							break;
-						}
-					}				
-				}     
+	/**
+	 * Method to verify if the groups are written as they leave the window of the first pass. Groups found with
+	 * a candidate index can grow until the last row, so those engines always wait for the whole input.
+	 * @return true if the input is sorted and the sorted neighbourhood engine is used
+	 */
+	private boolean isStreaming() {
+		return meta.getStreaming() && meta.getEngine() == DetectionEngine.SORTED_NEIGHBOURHOOD;
+	}
+	
+	/**
+	 * Method to create the index that finds the rows to compare with each row
+	 * @return CandidateIndex of the engine, or null for the sorted neighbourhood engine
+	 */
+	private CandidateIndex createCandidateIndex() {
+		switch (meta.getEngine()) {
+		case MIN_HASH:
+			return new MinHashIndex(meta.getQGramSize(), meta.getMinHashBands(), meta.getMinHashRows());
+		case ALL_PAIRS:
+			return new QGramIndex(meta.getMatchThreshold(), meta.getQGramSize());
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Method to resolve the input fields that make up the comparison key, all of them when none were chosen.
+	 * When rows are compared field by field, fields left to default are aligned with the same weight.
+	 */
+	private void resolveMatchFields() throws KettleStepException {
+		String[] names = meta.getMatchFields();
+		int[] fields = new int[names.length > 0 ? names.length : getInputRowMeta().size()];
+		FieldSimilarity[] functions = meta.getFieldwise() ? new FieldSimilarity[fields.length] : null;
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = names.length > 0 ? getInputRowMeta().indexOfValue(names[i]) : i;
+			if (fields[i] < 0)
+				throw new KettleStepException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.MatchField",
+						names[i] ) );
+			if (functions != null)
+				functions[i] = names.length > 0 ? meta.getMatchFunction()[i] : FieldSimilarity.NEEDLEMAN_WUNSCH;
+		}
+		data.setMatchFields(fields, functions);
+	}
+	
+	/**
+	 * Method to create the similarity of rows compared field by field
+	 * @return FieldwiseSimilarity over the match fields, or null if rows are compared on their whole keys
+	 */
+	private FieldwiseSimilarity createFieldwiseSimilarity() {
+		FieldSimilarity[] functions = data.getMatchFunctions();
+		if (functions == null)
+			return null;
+		double[] weights = new double[functions.length];
+		double[] tolerances = new double[functions.length];
+		for (int i = 0; i < functions.length; i++) {
+			weights[i] = meta.getMatchFields().length > 0 ? meta.getMatchWeight()[i] : 1;
+			tolerances[i] = meta.getMatchFields().length > 0 ? meta.getMatchTolerance()[i] : 0;
+		}
+		return new FieldwiseSimilarity(functions, weights, tolerances);
+	}
+	
+	/**
+	 * Method to open the reference index holding the rows of the previous runs, which must have been built with the
+	 * same keys
+	 */
+	private void openReferenceIndex() throws KettleException {
+		File file = new File(environmentSubstitute(meta.getReferenceIndex()));
+		// The band hashes of the MinHash engine are stored to find the stored rows sharing a bucket with a row
+		MinHashIndex hashes = meta.getEngine() == DetectionEngine.MIN_HASH
+				? new MinHashIndex(meta.getQGramSize(), meta.getMinHashBands(), meta.getMinHashRows()) : null;
+		int fieldCount = data.getMatchFunctions() != null ? data.getMatchFunctions().length : 0;
+		ReferenceIndex index;
+		try {
+			index = new ReferenceIndex(file, getReferenceLayout(), data.getBlockingFields().length, fieldCount, hashes,
+					meta.getWindowSize());
+		} catch (IOException e) {
+			throw new KettleFileException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.ReadReferenceIndex",
+					file.getPath() ), e );
+		}
+		data.setReferenceIndex(index);
+		if (!index.isCompatible())
+			throw new KettleStepException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.ReferenceLayout",
+					file.getPath() ) );
+		if ( log.isBasic() )
+			logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.ReferenceRows", String.valueOf(index.size()),
+					file.getPath() ) );
+	}
+	
+	/**
+	 * Method to describe the settings the rows stored in a reference index are built with: the match fields and
+	 * their functions, the blocking keys and the MinHash signatures
+	 * @return String compared with the one stored in the index
+	 */
+	private String getReferenceLayout() {
+		StringBuilder layout = new StringBuilder();
+		int[] fields = data.getMatchFields();
+		FieldSimilarity[] functions = data.getMatchFunctions();
+		for (int i = 0; i < fields.length; i++) {
+			layout.append(getInputRowMeta().getValueMeta(fields[i]).getName());
+			if (functions != null)
+				layout.append(':').append(functions[i].getCode());
+			layout.append(';');
+		}
+		for (int pass = 0; pass < data.getBlockingFields().length; pass++) {
+			layout.append('|');
+			for (int k = 0; k < data.getBlockingFields()[pass].length; k++)
+				layout.append(getInputRowMeta().getValueMeta(data.getBlockingFields()[pass][k]).getName()).append(':')
+						.append(data.getBlockingPrefixes()[pass][k]).append(';');
+		}
+		if (meta.getEngine() == DetectionEngine.MIN_HASH)
+			layout.append("|MinHash:").append(meta.getQGramSize()).append(':').append(meta.getMinHashBands()).append(':')
+					.append(meta.getMinHashRows());
+		return layout.toString();
+	}
+	
+	/**
+	 * Method to build the comparison key of a row, concatenating its match fields each followed by a space.
+	 * When rows are compared field by field, the value of each field is also kept on its own, numeric values
+	 * being written without their format so that they can be read back.
+	 * @param row the input row
+	 * @return StringBuilder with the key, reused for the next row
+	 */
+	private StringBuilder buildKey(Object[] row) throws KettleValueException {
+		int[] fields = data.getMatchFields();
+		FieldSimilarity[] functions = data.getMatchFunctions();
+		StringBuilder key = data.getKey();
+		key.setLength(0);
+		for (int i = 0; i < fields.length; i++) {
+			String value = getInputRowMeta().getString(row, fields[i]);
+			if (value != null)
+				key.append(value);
+			key.append(' ');
+			if (functions == null)
+				continue;
+			StringBuilder fieldValue = data.getFieldValues()[i];
+			fieldValue.setLength(0);
+			ValueMetaInterface valueMeta = getInputRowMeta().getValueMeta(fields[i]);
+			if (functions[i] == FieldSimilarity.NUMERIC && valueMeta.isNumeric()) {
+				Double number = valueMeta.getNumber(row[fields[i]]);
+				if (number != null)
+					fieldValue.append(number.doubleValue());
+			} else if (value != null)
+				fieldValue.append(value);
+		}
+		return key;
+	}
+	
+	/**
+	 * Method to resolve the input fields of the blocking keys, grouping the fields of each extra pass in the order
+	 * of the pass numbers
+	 */
+	private void resolveBlockingKeys() throws KettleStepException {
+		TreeMap<Integer, List<int[]>> passes = new TreeMap<Integer, List<int[]>>();
+		for (int i = 0; i < meta.getBlockingField().length; i++) {
+			int index = getInputRowMeta().indexOfValue(meta.getBlockingField()[i]);
+			if (index < 0)
+				throw new KettleStepException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.BlockingField",
+						meta.getBlockingField()[i] ) );
+			if (!passes.containsKey(meta.getBlockingPass()[i]))
+				passes.put(meta.getBlockingPass()[i], new ArrayList<int[]>());
+			passes.get(meta.getBlockingPass()[i]).add(new int[] { index, Math.max(0, meta.getBlockingPrefix()[i]) });
+		}
+		int[][] fields = new int[passes.size()][];
+		int[][] prefixes = new int[passes.size()][];
+		int pass = 0;
+		for (List<int[]> components : passes.values()) {
+			fields[pass] = new int[components.size()];
+			prefixes[pass] = new int[components.size()];
+			for (int k = 0; k < components.size(); k++) {
+				fields[pass][k] = components.get(k)[0];
+				prefixes[pass][k] = components.get(k)[1];
 			}
-			if (!changed) { 
-				queue.addFirst(node.findSet());
-				if (queue.size() > 4) {
-					queue.removeLast();
-				}
+			pass++;
+		}
+		data.setBlockingKeys(fields, prefixes);
+	}
+	
+	/**
+	 * Method to build the blocking keys of a row, concatenating the leading characters of their fields
+	 * @param row the input row
+	 * @return StringBuilder array with the blocking key of each extra pass, reused for the next row
+	 */
+	private StringBuilder[] buildBlockingKeys(Object[] row) throws KettleValueException {
+		StringBuilder[] keys = data.getBlockingKeys();
+		for (int pass = 0; pass < keys.length; pass++) {
+			int[] fields = data.getBlockingFields()[pass];
+			int[] prefixes = data.getBlockingPrefixes()[pass];
+			StringBuilder key = keys[pass];
+			key.setLength(0);
+			for (int k = 0; k < fields.length; k++) {
+				String value = getInputRowMeta().getString(row, fields[k]);
+				if (value != null)
+					key.append(value, 0, prefixes[k] > 0 ? Math.min(prefixes[k], value.length()) : value.length());
+				key.append(' ');
 			}
-		} 
+		}
+		return keys;
 	}
-	private void writeOutput() throws KettleStepException, KettlePluginException {
-		for (int i = 0; i < data.buffer.size(); i++) {
-			// Verify if duplicates should be in the output
-			if (data.getGraph().get(i) != data.getGraph().get(i).findSet() && meta.getRemoveDuplicates())
-				continue;
-			
-			Object[] newRow = new Object[data.buffer.get(i).length + 2];
-			for (int j = 0; j < data.buffer.get(i).length; j++) 
-				newRow[j] = data.buffer.get(i)[j];
-			RowMeta rowMeta = new RowMeta();
-			rowMeta.addValueMeta(ValueMetaFactory.createValueMeta( meta.getGroupColumnName(), ValueMetaInterface.TYPE_INTEGER ));
-			rowMeta.addValueMeta(ValueMetaFactory.createValueMeta( meta.getSimColumnName(), ValueMetaInterface.TYPE_NUMBER ));    
-			
-			Double outputSimilarity = null;
-			
-			//Verify if duplicates should be in the output
-			if (meta.getRemoveDuplicates() && data.getGraph().get(i) != data.getGraph().get(i).findSet()) 
-				continue;
-			//Verify if singletons should be in the output
-			if (meta.getRemoveSingletons() && data.getGraph().get(i) == data.getGraph().get(i).findSet() &&
-					data.getGraph().get(i).getChildren().size() == 0)
-				continue;
+	
+	/**
+	 * Method to account for the memory held by a buffered row, moving the rows to disk once the memory budget
+	 * is exceeded. The comparison keys stay in memory for the passes, and are sorted there through primitive
+	 * arrays of row ids. Rows already kept on disk only count for their keys.
+	 * @param row the input row
+	 * @param node the id of the row
+	 */
+	private void checkMemoryBudget(Object[] row, int node) throws KettleException {
+		if (meta.getMemoryBudget() <= 0)
+			return;
+		// The key, in the arena outside of the heap, and the group of the row
+		DuplicateDetector detector = data.getDetector();
+		long bytes = KEY_BYTES + detector.getKeys().byteLength(node);
+		for (int pass = 0; pass < detector.getBlockingPassCount(); pass++)
+			bytes += KEY_BYTES + detector.getBlockingKeys(pass).byteLength(node);
+		if (detector.getFields() != null)
+			bytes += detector.getFields().byteLength(node);
+		if (detector.getCandidateIndex() != null)
+			bytes += detector.getCandidateIndex().bytesPerRow();
+		if (!data.buffer.isSpilled())
+			bytes += RowBuffer.estimateBytes(row);
+		data.addBufferedBytes(bytes);
+		if (!data.isOverBudget() && data.getBufferedBytes() > getMemoryBudgetBytes()) {
+			if ( log.isBasic() )
+				logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.SpillingRows", String.valueOf(data.buffer.size()) ) );
+			data.setOverBudget(true);
+			data.buffer.spill();
+		}
+	}
+	
+	private long getMemoryBudgetBytes() {
+		return meta.getMemoryBudget() * 1024L * 1024L;
+	}
+	
+	private File getSpillDirectory() {
+		return new File(environmentSubstitute(meta.getSpillDirectory()));
+	}
+	
+	/**
+	 * Method to run the first pass over a row of input already sorted on the comparison key. The groups that
+	 * leave the window can no longer change, so their rows are written right away.
+	 * @param row the input row
+	 * @param node the id of the row
+	 */
+	private void streamRow(Object[] row, int node) throws KettleStepException {
+		WindowBuffer window = data.getWindow();
+		data.putPendingRow(node, row);
+		if (window.isEmpty()) {
+			window.addFirst(node);
+			return;
+		}
+		DuplicateDetector detector = data.getDetector();
+		detector.matchFirstPass(node, window);
+		for (int evicted = detector.evict(window); evicted >= 0; evicted = detector.evict(window))
+			writeGroup(evicted);
+	}
+	
+	/**
+	 * Method to write the groups still in the window once the input is over, oldest first
+	 */
+	private void flushWindow() throws KettleStepException {
+		WindowBuffer window = data.getWindow();
+		while (!window.isEmpty())
+			writeGroup(window.removeLast());
+	}
+	
+	/**
+	 * Method to write the rows of a group that left the window, in input order, and release their keys, values and
+	 * ids
+	 * @param group the id of a row of the group
+	 */
+	private void writeGroup(int group) throws KettleStepException {
+		DuplicateDetector detector = data.getDetector();
+		int[] members = getMembers(group);
+		ReferenceIndex index = data.getReferenceIndex();
+		if (index != null)
+			index.attach(detector, members, members.length);
+		// Recycled ids are not in input order, so the members are sorted on their row numbers
+		long[] order = new long[members.length];
+		for (int k = 0; k < members.length; k++)
+			order[k] = (long) detector.rowNumber(members[k]) << 32 | members[k];
+		Arrays.sort(order);
+		for (int k = 0; k < members.length; k++)
+			putOutputRow(data.removePendingRow((int) order[k]), (int) order[k]);
+		for (int k = 0; k < members.length; k++)
+			detector.release(members[k]);
+		if (index != null)
+			index.releaseRows(detector);
+		data.getMetrics().addGroup(members.length);
+	}
+	
+	/**
+	 * Method to obtain the rows of a group
+	 * @param group the id of a row of the group
+	 * @return int array with the ids of the rows, from that row on
+	 */
+	private int[] getMembers(int group) {
+		UnionFind groups = data.getDetector().getGroups();
+		int[] members = new int[groups.size(group)];
+		int member = group;
+		for (int k = 0; k < members.length; k++) {
+			members[k] = member;
+			member = groups.next(member);
+		}
+		return members;
+	}
+	
+	private void detectApproxDups() throws KettleException {
+		DuplicateDetector detector = data.getDetector();
+		DetectionMetrics metrics = data.getMetrics();
+		long start = System.nanoTime();
+		// The sorts of large inputs take seconds, and stop along with the passes
+		PassMonitor sortProgress = new PassProgress(Phase.SORT);
+		// Rows found through an incremental candidate index were already compared as they arrived
+		if (detector.getCandidateIndex() == null) {
+			int[] order;
+			int[] reversedOrder = null;
+			// With several threads, the reversed keys are sorted along with the forward ones
+			if (meta.getThreads() > 1) {
+				int[][] orders = detector.getKeys().sortBothWays(sortProgress);
+				order = orders[0];
+				reversedOrder = orders[1];
+			} else
+				order = detector.getKeys().sort(false, sortProgress);
+			start = metrics.lap(Phase.SORT, start);
+			if (isStopped())
+				return;
+			detector.setMonitor(new PassProgress(Phase.FIRST_PASS));
+			detector.firstPass(order);
+			start = logPass(Phase.FIRST_PASS, start);
+			if (detector.isStopped())
+				return;
+			if (reversedOrder == null) {
+				reversedOrder = detector.getKeys().sort(true, sortProgress);
+				start = metrics.lap(Phase.SORT, start);
+				if (isStopped())
+					return;
+			}
+			detector.setMonitor(new PassProgress(Phase.SECOND_PASS));
+			detector.mergePass(reversedOrder);
+			start = logPass(Phase.SECOND_PASS, start);
+		} else if (!detector.getCandidateIndex().isIncremental()) {
+			detector.setMonitor(new PassProgress(Phase.FIRST_PASS));
+			detector.joinPass();
+			start = logPass(Phase.FIRST_PASS, start);
+		}
+		for (int pass = 0; pass < detector.getBlockingPassCount() && !detector.isStopped(); pass++) {
+			int[] order = detector.getBlockingKeys(pass).sort(false, sortProgress);
+			start = metrics.lap(Phase.SORT, start);
+			if (isStopped())
+				break;
+			detector.setMonitor(new PassProgress(Phase.BLOCKING_PASSES));
+			detector.mergePass(order);
+			start = logPass(Phase.BLOCKING_PASSES, start);
+		}
+		detector.setMonitor(null);
+	}
+	
+	/**
+	 * Method to add the time of a pass that just ended to its phase and log it, so that the long detection
+	 * after the last row is not silent
+	 * @param phase the phase of the pass
+	 * @param start the value of System.nanoTime() when the pass started
+	 * @return long corresponding to the current value of System.nanoTime()
+	 */
+	private long logPass(Phase phase, long start) {
+		long now = data.getMetrics().lap(phase, start);
+		passRows += data.getDetector().getKeys().size();
+		setLinesUpdated(passRows);
+		if ( data.getDetector().isStopped() )
+			return now;
+		if ( log.isBasic() )
+			logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.PassDone",
+					BaseMessages.getString( PKG, "DIDuplicateDetection.Phase." + phase.name() ),
+					String.valueOf((now - start) / 1000000) ) );
+		return now;
+	}
+	
+	/**
+	 * Method to record the rows and key data held so far in the metrics
+	 */
+	private void sampleMetrics() {
+		data.getMetrics().sample(data.getDetector(), isStreaming() ? data.getPendingCount() : data.buffer.size());
+	}
+	
+	/**
+	 * Method to log the metrics of the run once the groups are final
+	 */
+	private void logMetrics() {
+		if ( !log.isBasic() )
+			return;
+		DetectionMetrics metrics = data.getMetrics();
+		logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.Rows", String.valueOf(metrics.getRows()),
+				String.valueOf(metrics.getBufferedRows()), String.valueOf(metrics.getKeyBytes()) ) );
+		logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.Times", String.valueOf(metrics.getTime(Phase.READ)),
+				String.valueOf(metrics.getTime(Phase.SORT)), String.valueOf(metrics.getTime(Phase.FIRST_PASS)),
+				String.valueOf(metrics.getTime(Phase.SECOND_PASS)), String.valueOf(metrics.getTime(Phase.BLOCKING_PASSES)),
+				String.valueOf(metrics.getTime(Phase.OUTPUT)) ) );
+		logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.Alignments", String.valueOf(metrics.getAlignments()),
+				String.valueOf(metrics.getLengthPrunes()), String.valueOf(metrics.getCountPrunes()),
+				String.valueOf(metrics.getEarlyExits()) ) );
+		if ( data.getDetector().getCandidateIndex() != null )
+			logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.Candidates", String.valueOf(metrics.getCandidates()) ) );
+		logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.SimilarityCache",
+				String.valueOf(metrics.getCacheHits()), String.valueOf(metrics.getCacheMisses()) ) );
+		logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.Groups", String.valueOf(metrics.getMerges()),
+				String.valueOf(metrics.getGroups()), String.valueOf(metrics.getLargestGroup()),
+				String.valueOf(metrics.getPeakWindow()) ) );
+		logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.GroupSizes", metrics.formatGroupSizes() ) );
+	}
+	
+	/**
+	 * Method to write the metrics row to the metrics step, if there is one, and tell it that no other row follows
+	 */
+	private void writeMetrics() throws KettleStepException {
+		RowSet rowSet = data.getMetricsRowSet();
+		if (rowSet == null)
+			return;
+		RowMetaInterface rowMeta = new RowMeta();
+		meta.getMetricsFields(rowMeta);
+		putRowTo(rowMeta, data.getMetrics().getValues(), rowSet);
+		rowSet.setDone();
+	}
+	
+	/**
+	 * Method to join the groups of the run to the reference groups they match, once the groups are final
+	 */
+	private void joinReferenceGroups() {
+		ReferenceIndex index = data.getReferenceIndex();
+		if (index == null)
+			return;
+		// Rows read from the index are added after the rows of the run
+		UnionFind groups = data.getDetector().getGroups();
+		int rows = groups.count();
+		for (int node = 0; node < rows && !isStopped(); node++) {
+			if (groups.representative(node) == node) {
+				int[] members = getMembers(node);
+				index.attach(data.getDetector(), members, members.length);
+			}
+		}
+	}
+	
+	/**
+	 * Method to add the rows of the run to the reference index with their groups, once all of them were written.
+	 * The index is left as it was when the transformation is stopped.
+	 */
+	private void writeReferenceIndex() throws KettleException {
+		ReferenceIndex index = data.getReferenceIndex();
+		if (index == null || isStopped())
+			return;
+		File file = new File(environmentSubstitute(meta.getReferenceIndex()));
+		try {
+			index.write();
+		} catch (IOException e) {
+			throw new KettleFileException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.WriteReferenceIndex",
+					file.getPath() ), e );
+		}
+		if ( log.isBasic() )
+			logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.ReferenceWritten",
+					String.valueOf(index.getJoinedGroups()), String.valueOf(index.getLoadedRows()),
+					String.valueOf(index.getRunRows()), String.valueOf(index.size() + index.getRunRows()),
+					String.valueOf(index.getCopiedRows()) ) );
+	}
+	
+	private void writeOutput() throws KettleException {
+		for (int i = 0; i < data.buffer.size() && !isStopped(); i++)
+			putOutputRow(data.buffer.next(), i);
+		data.buffer.close();
+	}
+	
+	/**
+	 * Method to write an input row with its group and the similarity to the representative of the group
+	 * @param row the input row
+	 * @param node the id of the row
+	 */
+	private void putOutputRow(Object[] row, int node) throws KettleStepException {
+		DuplicateDetector detector = data.getDetector();
+		UnionFind groups = detector.getGroups();
+		int representative = groups.representative(node);
+		// Group ids are the 1-based index of the representative row, in the whole history with a reference index
+		long group = detector.rowNumber(representative) + 1L;
+		int referenceRepresentative = -1; // First row of the reference group the group joined
+		ReferenceIndex index = data.getReferenceIndex();
+		if (index != null) {
+			group = index.getGroupId(detector, node);
+			referenceRepresentative = index.getReferenceRepresentative(detector, node);
+			// Every row of the run is stored, whether it is written or not
+			try {
+				index.addRow(detector, node, group);
+			} catch (IOException e) {
+				throw new KettleStepException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.WriteReferenceIndex",
+						meta.getReferenceIndex() ), e );
+			}
+		}
+		boolean joined = referenceRepresentative >= 0;
+		//Verify if duplicates should be in the output
+		if (meta.getRemoveDuplicates() && (node != representative || joined))
+			return;
+		//Verify if singletons should be in the output
+		if (meta.getRemoveSingletons() && groups.size(node) == 1 && !joined)
+			return;
+		
+		Double outputSimilarity = null;
+		if (groups.size(node) == 1 && !joined)
+			outputSimilarity = SINGLETON_SIMILARITY;
+		if (node != representative || joined) {
+			// Recorded when the row joined the representative, and truncated to one decimal
+			double similarity = joined ? detector.similarity(referenceRepresentative, node)
+					: detector.representativeSimilarity(node);
+			outputSimilarity = Double.valueOf((long) (similarity * 10) / 10.0);
+		}
 			
-			if (i + 1 == data.getGraph().get(i).getIndex() && data.getGraph().get(i).getChildren().isEmpty())
-				outputSimilarity = new Double(-1);
-			if (i + 1 != data.getGraph().get(i).findSet().getIndex()) {
-				double similarity = (1 - Math.abs(nd.score(data.getGraph().get(i).findSet().getData(), data.getGraph().get(i).getData())) /
-						Math.max(data.getGraph().get(i).findSet().getData().length(), data.getGraph().get(i).getData().length()));
-				DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.getDefault());
-				symbols.setDecimalSeparator('.');
-				DecimalFormat df = new DecimalFormat("#.#", symbols);
-			 
-				df.setRoundingMode(RoundingMode.DOWN);
-				outputSimilarity = Double.parseDouble(df.format(similarity));
+		// The two columns are added in place when the input row has room for them
+		int inputSize = getInputRowMeta().size();
+		Object[] newRow = RowDataUtil.resizeArray(row, data.getOutputRowMeta().size());
+		newRow[inputSize] = Long.valueOf(group);
+		newRow[inputSize + 1] = outputSimilarity;
+		putRow( data.getOutputRowMeta(), newRow);
+	}
+	
+	/**
+	 * Follows a pass of the detector: stops it once the transformation is stopped, shows the rows it processed in
+	 * the step status, and logs its progress with an estimate of the time left every few seconds
+	 */
+	private class PassProgress implements PassMonitor {
+		private final Phase phase; // Phase of the pass
+		private final long start = System.nanoTime(); // Value of System.nanoTime() when the pass started
+		private long lastLog = start; // Value of System.nanoTime() when the progress was last logged
+		
+		PassProgress(Phase phase) {
+			this.phase = phase;
+		}
+		
+		public boolean progress(int processed, int total) {
+			if (isStopped())
+				return false;
+			setLinesUpdated(passRows + processed);
+			long now = System.nanoTime();
+			if (processed > 0 && now - lastLog >= PROGRESS_LOG_NANOS && log.isBasic()) {
+				lastLog = now;
+				long left = (now - start) / processed * (total - processed) / 1000000000L;
+				logBasic( BaseMessages.getString( PKG, "DIDuplicateDetection.Log.Progress",
+						BaseMessages.getString( PKG, "DIDuplicateDetection.Phase." + phase.name() ), String.valueOf(processed),
+						String.valueOf(total), String.valueOf(100L * processed / total), String.valueOf(left) ) );
 			}
-				
-			RowMetaAndData newRowMD = new RowMetaAndData(rowMeta, new Object[] { new Long( data.getGraph().get(i).findSet().getIndex()), outputSimilarity});
-			newRow = RowDataUtil.addRowData( newRow, getInputRowMeta().size(), newRowMD.getData() );    
-			putRow( data.getOutputRowMeta(), newRow);
+			return true;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -18,10 +18,9 @@
  */
 package org.pentaho.dataintegration;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Vector;
+import java.util.Arrays;
 
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -30,16 +29,32 @@ import org.pentaho.di.trans.step.StepDataInterface;
 public class DIDuplicateDetectionData extends BaseStepData implements StepDataInterface {
 
 	private RowMetaInterface outputRowMeta;
-	protected ArrayList<Node> graph; // Keeps nodes that form the graph for the domain-independent approach
-	protected List<Object[]> buffer; // Keeps row data for output
+	private DuplicateDetector detector; // Keeps the comparison keys and the groups of approximate duplicates
+	protected RowBuffer buffer; // Keeps row data for output
+	private long bufferedBytes; // Estimated heap used by the buffered rows and their keys
+	private boolean overBudget; // True once the buffered bytes exceeded the memory budget
 	private int rowIndex; // Keeps the index of the last processed row
+	private WindowBuffer window; // Keeps the representatives of the groups still open in streaming mode
+	private int[][] blockingFields; // Keeps the input field indexes of the blocking key of each extra pass
+	private int[][] blockingPrefixes; // Keeps the number of leading characters of each blocking key field, 0 for all
+	private int[] matchFields; // Keeps the input field indexes that make up the comparison key
+	private FieldSimilarity[] matchFunctions; // Keeps the similarity function of each match field, null to compare whole keys
+	private StringBuilder key; // Reused to build the comparison key of each row
+	private StringBuilder[] fieldValues; // Reused to keep the value of each match field compared on its own
+	private StringBuilder[] blockingKeys; // Reused to build the blocking keys of each row, by extra pass
+	private Object[][] pendingRows; // Keeps row data of the open groups in streaming mode, by row id
+	private int pendingCount; // Keeps the number of rows of the open groups
+	private DetectionMetrics metrics; // Measures of the run
+	private RowSet metricsRowSet; // Receives the metrics row, null when no step does
+	private ReferenceIndex referenceIndex; // Keeps the rows and groups of the previous runs, null when none is used
 	
 
 	public DIDuplicateDetectionData() {
 		super();
-		graph = new ArrayList<Node>();
-		buffer = new ArrayList<Object[]>( 5000 );
 		rowIndex = 0;
+		pendingRows = new Object[1024][];
+		key = new StringBuilder(256);
+		metrics = new DetectionMetrics();
 	}
 	
 	public void setOutputRowMeta(RowMetaInterface outputRowMeta) {
@@ -50,12 +65,153 @@ public class DIDuplicateDetectionData extends BaseStepData implements StepDataIn
 		return this.outputRowMeta;
 	}
 
-	public void addNode(String data, int index) {
-		graph.add(new Node(data, index));
+	public void setDetector(DuplicateDetector detector) {
+		this.detector = detector;
 	}
 	
-	public ArrayList<Node> getGraph() {
-		return graph;
+	public DuplicateDetector getDetector() {
+		return detector;
+	}
+	
+	public void setWindow(WindowBuffer window) {
+		this.window = window;
+	}
+	
+	public WindowBuffer getWindow() {
+		return window;
+	}
+	
+	/**
+	 * Method to set the blocking keys of the extra passes
+	 * @param blockingFields the input field indexes of the blocking key of each extra pass
+	 * @param blockingPrefixes the number of leading characters of each field, 0 for the whole field
+	 */
+	public void setBlockingKeys(int[][] blockingFields, int[][] blockingPrefixes) {
+		this.blockingFields = blockingFields;
+		this.blockingPrefixes = blockingPrefixes;
+		this.blockingKeys = new StringBuilder[blockingFields.length];
+		for (int pass = 0; pass < blockingKeys.length; pass++)
+			blockingKeys[pass] = new StringBuilder(64);
+	}
+	
+	public int[][] getBlockingFields() {
+		return blockingFields;
+	}
+	
+	public int[][] getBlockingPrefixes() {
+		return blockingPrefixes;
+	}
+	
+	public StringBuilder[] getBlockingKeys() {
+		return blockingKeys;
+	}
+	
+	/**
+	 * Method to set the match fields
+	 * @param matchFields the input field indexes that make up the comparison key
+	 * @param matchFunctions the similarity function of each field compared on its own, or null to compare whole keys
+	 */
+	public void setMatchFields(int[] matchFields, FieldSimilarity[] matchFunctions) {
+		this.matchFields = matchFields;
+		this.matchFunctions = matchFunctions;
+		if (matchFunctions != null) {
+			fieldValues = new StringBuilder[matchFields.length];
+			for (int i = 0; i < fieldValues.length; i++)
+				fieldValues[i] = new StringBuilder(32);
+		}
+	}
+	
+	public int[] getMatchFields() {
+		return matchFields;
+	}
+	
+	public FieldSimilarity[] getMatchFunctions() {
+		return matchFunctions;
+	}
+	
+	public StringBuilder getKey() {
+		return key;
+	}
+	
+	public StringBuilder[] getFieldValues() {
+		return fieldValues;
+	}
+	
+	/**
+	 * Method to keep the data of a row of an open group until its group is written
+	 * @param node the id of the row, which the detector gives again once the row is released
+	 * @param row the input row
+	 */
+	public void putPendingRow(int node, Object[] row) {
+		if (node >= pendingRows.length)
+			pendingRows = Arrays.copyOf(pendingRows, Math.max(node + 1, pendingRows.length * 2));
+		pendingRows[node] = row;
+		pendingCount++;
+	}
+	
+	/**
+	 * Method to take the data of a row whose group is written
+	 * @param node the id of the row
+	 * @return the input row
+	 */
+	public Object[] removePendingRow(int node) {
+		Object[] row = pendingRows[node];
+		pendingRows[node] = null;
+		pendingCount--;
+		return row;
+	}
+	
+	public int getPendingCount() {
+		return pendingCount;
+	}
+	
+	public DetectionMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public void setMetricsRowSet(RowSet metricsRowSet) {
+		this.metricsRowSet = metricsRowSet;
+	}
+	
+	public RowSet getMetricsRowSet() {
+		return metricsRowSet;
+	}
+	
+	public void setReferenceIndex(ReferenceIndex referenceIndex) {
+		this.referenceIndex = referenceIndex;
+	}
+	
+	public ReferenceIndex getReferenceIndex() {
+		return referenceIndex;
+	}
+	
+	public void addBufferedBytes(long bytes) {
+		bufferedBytes += bytes;
+	}
+	
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+	
+	public void setOverBudget(boolean overBudget) {
+		this.overBudget = overBudget;
+	}
+	
+	public boolean isOverBudget() {
+		return overBudget;
+	}
+	
+	/**
+	 * Method to delete the files left on disk by the row buffer and the reference index, and to free the
+	 * keys
+	 */
+	public void closeSpillFiles() {
+		if (buffer != null)
+			buffer.close();
+		if (referenceIndex != null)
+			referenceIndex.close();
+		if (detector != null)
+			detector.close();
 	}
 	
 	public void incrementIndex() {
@@ -31,9 +31,11 @@ import org.eclipse.swt.layout.FormLayout;
 import org.eclipse.swt.widgets.*;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.Props;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.plugins.PluginInterface;
 import org.pentaho.di.core.plugins.PluginRegistry;
 import org.pentaho.di.core.plugins.StepPluginType;
+import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
@@ -41,6 +43,8 @@ import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.ui.core.ConstUI;
 import org.pentaho.di.ui.core.FormDataBuilder;
 import org.pentaho.di.ui.core.gui.GUIResource;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
+import org.pentaho.di.ui.core.widget.TableView;
 import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 
@@ -55,6 +59,28 @@ public class DIDuplicateDetectionDialog extends BaseStepDialog implements StepDi
 	private Text wSimColumnName;
 	private Button wRemoveDuplicates;
 	private Button wRemoveSingletons;
+	private Button wStreaming;
+	private Text wMemoryBudget;
+	private Button wRowsOnDisk;
+	private TextVar wSpillDirectory;
+	private Text wThreads;
+	private Text wWindowSize;
+	private Button wAdaptiveWindow;
+	private Text wMaxWindowSize;
+	private Button wFieldwise;
+	private CCombo wEngine;
+	private String[] engineDescriptions; // Descriptions of the detection engines, in declaration order
+	private Text wQGramSize;
+	private Text wMinHashBands;
+	private Text wMinHashRows;
+	private CCombo wVerification;
+	private String[] verificationDescriptions; // Descriptions of the verification policies, with their trade-off
+	private Text wVerificationSample;
+	private CCombo wMetricsStep;
+	private TextVar wReferenceIndex;
+	private TableView wMatchFields;
+	private String[] functionDescriptions; // Descriptions of the field similarity functions, in declaration order
+	private TableView wBlockingKeys;
 	private Button wCancel;
 	private Button wOK;
 	private ModifyListener lsMod;
@@ -240,6 +266,407 @@ public class DIDuplicateDetectionDialog extends BaseStepDialog implements StepDi
 				.result();
 		wRemoveSingletons.setLayoutData( fdRemoveSingletons );
 
+		Label wlStreaming = new Label( shell, SWT.RIGHT );
+		wlStreaming.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Streaming.Label" ) );
+		wlStreaming.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Streaming.Tooltip" ) );
+		props.setLook( wlStreaming );
+
+		FormData fdlStreaming = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wRemoveSingletons, 4 * Const.MARGIN )
+				.result();
+		wlStreaming.setLayoutData( fdlStreaming );
+
+		wStreaming = new Button(shell, SWT.CHECK);
+		wStreaming.addSelectionListener( selectedListener );
+		props.setLook(wStreaming);
+
+		FormData fdStreaming = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wRemoveSingletons, 4 * Const.MARGIN )
+				.result();
+		wStreaming.setLayoutData( fdStreaming );
+
+		Label wlMemoryBudget = new Label( shell, SWT.RIGHT );
+		wlMemoryBudget.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MemoryBudget.Label" ) );
+		wlMemoryBudget.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MemoryBudget.Tooltip" ) );
+		props.setLook( wlMemoryBudget );
+
+		FormData fdlMemoryBudget = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wStreaming, 4 * Const.MARGIN )
+				.result();
+		wlMemoryBudget.setLayoutData( fdlMemoryBudget );
+
+		wMemoryBudget = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wMemoryBudget );
+		wMemoryBudget.addModifyListener( lsMod );
+
+		FormData fdMemoryBudget = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wStreaming, 4 * Const.MARGIN )
+				.result();
+		wMemoryBudget.setLayoutData( fdMemoryBudget );
+
+		Label wlRowsOnDisk = new Label( shell, SWT.RIGHT );
+		wlRowsOnDisk.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.RowsOnDisk.Label" ) );
+		wlRowsOnDisk.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.RowsOnDisk.Tooltip" ) );
+		props.setLook( wlRowsOnDisk );
+
+		FormData fdlRowsOnDisk = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wMemoryBudget, 4 * Const.MARGIN )
+				.result();
+		wlRowsOnDisk.setLayoutData( fdlRowsOnDisk );
+
+		wRowsOnDisk = new Button(shell, SWT.CHECK);
+		wRowsOnDisk.addSelectionListener( selectedListener );
+		props.setLook(wRowsOnDisk);
+
+		FormData fdRowsOnDisk = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wMemoryBudget, 4 * Const.MARGIN )
+				.result();
+		wRowsOnDisk.setLayoutData( fdRowsOnDisk );
+
+		Label wlSpillDirectory = new Label( shell, SWT.RIGHT );
+		wlSpillDirectory.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.SpillDirectory.Label" ) );
+		props.setLook( wlSpillDirectory );
+
+		FormData fdlSpillDirectory = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wRowsOnDisk, 4 * Const.MARGIN )
+				.result();
+		wlSpillDirectory.setLayoutData( fdlSpillDirectory );
+
+		wSpillDirectory = new TextVar( transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wSpillDirectory );
+		wSpillDirectory.addModifyListener( lsMod );
+
+		FormData fdSpillDirectory = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wRowsOnDisk, 4 * Const.MARGIN )
+				.result();
+		wSpillDirectory.setLayoutData( fdSpillDirectory );
+
+		Label wlThreads = new Label( shell, SWT.RIGHT );
+		wlThreads.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Threads.Label" ) );
+		wlThreads.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Threads.Tooltip" ) );
+		props.setLook( wlThreads );
+
+		FormData fdlThreads = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wSpillDirectory, 4 * Const.MARGIN )
+				.result();
+		wlThreads.setLayoutData( fdlThreads );
+
+		wThreads = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wThreads );
+		wThreads.addModifyListener( lsMod );
+
+		FormData fdThreads = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wSpillDirectory, 4 * Const.MARGIN )
+				.result();
+		wThreads.setLayoutData( fdThreads );
+
+		Label wlWindowSize = new Label( shell, SWT.RIGHT );
+		wlWindowSize.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.WindowSize.Label" ) );
+		wlWindowSize.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.WindowSize.Tooltip" ) );
+		props.setLook( wlWindowSize );
+
+		FormData fdlWindowSize = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wThreads, 4 * Const.MARGIN )
+				.result();
+		wlWindowSize.setLayoutData( fdlWindowSize );
+
+		wWindowSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wWindowSize );
+		wWindowSize.addModifyListener( lsMod );
+
+		FormData fdWindowSize = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wThreads, 4 * Const.MARGIN )
+				.result();
+		wWindowSize.setLayoutData( fdWindowSize );
+
+		Label wlAdaptiveWindow = new Label( shell, SWT.RIGHT );
+		wlAdaptiveWindow.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.AdaptiveWindow.Label" ) );
+		wlAdaptiveWindow.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.AdaptiveWindow.Tooltip" ) );
+		props.setLook( wlAdaptiveWindow );
+
+		FormData fdlAdaptiveWindow = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wWindowSize, 4 * Const.MARGIN )
+				.result();
+		wlAdaptiveWindow.setLayoutData( fdlAdaptiveWindow );
+
+		wAdaptiveWindow = new Button(shell, SWT.CHECK);
+		wAdaptiveWindow.addSelectionListener( selectedListener );
+		props.setLook(wAdaptiveWindow);
+
+		FormData fdAdaptiveWindow = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wWindowSize, 4 * Const.MARGIN )
+				.result();
+		wAdaptiveWindow.setLayoutData( fdAdaptiveWindow );
+
+		Label wlMaxWindowSize = new Label( shell, SWT.RIGHT );
+		wlMaxWindowSize.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MaxWindowSize.Label" ) );
+		wlMaxWindowSize.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MaxWindowSize.Tooltip" ) );
+		props.setLook( wlMaxWindowSize );
+
+		FormData fdlMaxWindowSize = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wAdaptiveWindow, 4 * Const.MARGIN )
+				.result();
+		wlMaxWindowSize.setLayoutData( fdlMaxWindowSize );
+
+		wMaxWindowSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wMaxWindowSize );
+		wMaxWindowSize.addModifyListener( lsMod );
+
+		FormData fdMaxWindowSize = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wAdaptiveWindow, 4 * Const.MARGIN )
+				.result();
+		wMaxWindowSize.setLayoutData( fdMaxWindowSize );
+
+		Label wlFieldwise = new Label( shell, SWT.RIGHT );
+		wlFieldwise.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Fieldwise.Label" ) );
+		wlFieldwise.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Fieldwise.Tooltip" ) );
+		props.setLook( wlFieldwise );
+
+		FormData fdlFieldwise = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wMaxWindowSize, 4 * Const.MARGIN )
+				.result();
+		wlFieldwise.setLayoutData( fdlFieldwise );
+
+		wFieldwise = new Button(shell, SWT.CHECK);
+		wFieldwise.addSelectionListener( selectedListener );
+		props.setLook(wFieldwise);
+
+		FormData fdFieldwise = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wMaxWindowSize, 4 * Const.MARGIN )
+				.result();
+		wFieldwise.setLayoutData( fdFieldwise );
+
+		Label wlEngine = new Label( shell, SWT.RIGHT );
+		wlEngine.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Engine.Label" ) );
+		wlEngine.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Engine.Tooltip" ) );
+		props.setLook( wlEngine );
+
+		FormData fdlEngine = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wFieldwise, 4 * Const.MARGIN )
+				.result();
+		wlEngine.setLayoutData( fdlEngine );
+
+		DetectionEngine[] engines = DetectionEngine.values();
+		engineDescriptions = new String[engines.length];
+		for (int i = 0; i < engines.length; i++)
+			engineDescriptions[i] = BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Engine." + engines[i].getCode() );
+		wEngine = new CCombo( shell, SWT.BORDER | SWT.READ_ONLY );
+		wEngine.setItems( engineDescriptions );
+		props.setLook( wEngine );
+		wEngine.addModifyListener( lsMod );
+
+		FormData fdEngine = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wFieldwise, 4 * Const.MARGIN )
+				.result();
+		wEngine.setLayoutData( fdEngine );
+
+		Label wlQGramSize = new Label( shell, SWT.RIGHT );
+		wlQGramSize.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.QGramSize.Label" ) );
+		wlQGramSize.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.QGramSize.Tooltip" ) );
+		props.setLook( wlQGramSize );
+
+		FormData fdlQGramSize = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wEngine, 4 * Const.MARGIN )
+				.result();
+		wlQGramSize.setLayoutData( fdlQGramSize );
+
+		wQGramSize = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wQGramSize );
+		wQGramSize.addModifyListener( lsMod );
+
+		FormData fdQGramSize = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wEngine, 4 * Const.MARGIN )
+				.result();
+		wQGramSize.setLayoutData( fdQGramSize );
+
+		Label wlMinHashBands = new Label( shell, SWT.RIGHT );
+		wlMinHashBands.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MinHashBands.Label" ) );
+		wlMinHashBands.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MinHashBands.Tooltip" ) );
+		props.setLook( wlMinHashBands );
+
+		FormData fdlMinHashBands = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wQGramSize, 4 * Const.MARGIN )
+				.result();
+		wlMinHashBands.setLayoutData( fdlMinHashBands );
+
+		wMinHashBands = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wMinHashBands );
+		wMinHashBands.addModifyListener( lsMod );
+
+		FormData fdMinHashBands = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wQGramSize, 4 * Const.MARGIN )
+				.result();
+		wMinHashBands.setLayoutData( fdMinHashBands );
+
+		Label wlMinHashRows = new Label( shell, SWT.RIGHT );
+		wlMinHashRows.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MinHashRows.Label" ) );
+		wlMinHashRows.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MinHashRows.Tooltip" ) );
+		props.setLook( wlMinHashRows );
+
+		FormData fdlMinHashRows = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wMinHashBands, 4 * Const.MARGIN )
+				.result();
+		wlMinHashRows.setLayoutData( fdlMinHashRows );
+
+		wMinHashRows = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wMinHashRows );
+		wMinHashRows.addModifyListener( lsMod );
+
+		FormData fdMinHashRows = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wMinHashBands, 4 * Const.MARGIN )
+				.result();
+		wMinHashRows.setLayoutData( fdMinHashRows );
+
+		Label wlVerification = new Label( shell, SWT.RIGHT );
+		wlVerification.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Verification.Label" ) );
+		wlVerification.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Verification.Tooltip" ) );
+		props.setLook( wlVerification );
+
+		FormData fdlVerification = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wMinHashRows, 4 * Const.MARGIN )
+				.result();
+		wlVerification.setLayoutData( fdlVerification );
+
+		VerificationPolicy[] policies = VerificationPolicy.values();
+		verificationDescriptions = new String[policies.length];
+		for (int i = 0; i < policies.length; i++)
+			verificationDescriptions[i] = BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Verification." + policies[i].getCode() );
+		wVerification = new CCombo( shell, SWT.BORDER | SWT.READ_ONLY );
+		wVerification.setItems( verificationDescriptions );
+		props.setLook( wVerification );
+		wVerification.addModifyListener( lsMod );
+
+		FormData fdVerification = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wMinHashRows, 4 * Const.MARGIN )
+				.result();
+		wVerification.setLayoutData( fdVerification );
+
+		Label wlVerificationSample = new Label( shell, SWT.RIGHT );
+		wlVerificationSample.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.VerificationSample.Label" ) );
+		wlVerificationSample.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.VerificationSample.Tooltip" ) );
+		props.setLook( wlVerificationSample );
+
+		FormData fdlVerificationSample = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wVerification, 4 * Const.MARGIN )
+				.result();
+		wlVerificationSample.setLayoutData( fdlVerificationSample );
+
+		wVerificationSample = new Text( shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wVerificationSample );
+		wVerificationSample.addModifyListener( lsMod );
+
+		FormData fdVerificationSample = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wVerification, 4 * Const.MARGIN )
+				.result();
+		wVerificationSample.setLayoutData( fdVerificationSample );
+
+		Label wlMetricsStep = new Label( shell, SWT.RIGHT );
+		wlMetricsStep.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MetricsStep.Label" ) );
+		wlMetricsStep.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MetricsStep.Tooltip" ) );
+		props.setLook( wlMetricsStep );
+
+		FormData fdlMetricsStep = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wVerificationSample, 4 * Const.MARGIN )
+				.result();
+		wlMetricsStep.setLayoutData( fdlMetricsStep );
+
+		wMetricsStep = new CCombo( shell, SWT.BORDER );
+		wMetricsStep.setItems( transMeta.getNextStepNames( transMeta.findStep( stepname ) ) );
+		props.setLook( wMetricsStep );
+		wMetricsStep.addModifyListener( lsMod );
+
+		FormData fdMetricsStep = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wVerificationSample, 4 * Const.MARGIN )
+				.result();
+		wMetricsStep.setLayoutData( fdMetricsStep );
+
+		Label wlReferenceIndex = new Label( shell, SWT.RIGHT );
+		wlReferenceIndex.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.ReferenceIndex.Label" ) );
+		wlReferenceIndex.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.ReferenceIndex.Tooltip" ) );
+		props.setLook( wlReferenceIndex );
+
+		FormData fdlReferenceIndex = new FormDataBuilder()
+				.left( 0, 0 )
+				.right( props.getMiddlePct(), -Const.MARGIN )
+				.top( wMetricsStep, 4 * Const.MARGIN )
+				.result();
+		wlReferenceIndex.setLayoutData( fdlReferenceIndex );
+
+		wReferenceIndex = new TextVar( transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER );
+		props.setLook( wReferenceIndex );
+		wReferenceIndex.addModifyListener( lsMod );
+
+		FormData fdReferenceIndex = new FormDataBuilder()
+				.left( props.getMiddlePct(), 0 )
+				.right( 100, -Const.MARGIN )
+				.top( wMetricsStep, 4 * Const.MARGIN )
+				.result();
+		wReferenceIndex.setLayoutData( fdReferenceIndex );
+
 
 		//Cancel and OK buttons for the bottom of the window.
 		wCancel = new Button( shell, SWT.PUSH );
@@ -258,6 +685,76 @@ public class DIDuplicateDetectionDialog extends BaseStepDialog implements StepDi
 				.result();
 		wOK.setLayoutData( fdOk );
 
+		String[] fieldNames;
+		try {
+			fieldNames = transMeta.getPrevStepFields( stepname ).getFieldNames();
+		} catch ( KettleException e ) {
+			fieldNames = new String[0];
+		}
+
+		// Match fields on the left and blocking keys of the extra passes on the right, between the options and the buttons
+		Label wlMatchFields = new Label( shell, SWT.NONE );
+		wlMatchFields.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MatchFields.Label" ) );
+		wlMatchFields.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MatchFields.Tooltip" ) );
+		props.setLook( wlMatchFields );
+
+		FormData fdlMatchFields = new FormDataBuilder()
+				.left( 0, 0 )
+				.top( wReferenceIndex, 4 * Const.MARGIN )
+				.result();
+		wlMatchFields.setLayoutData( fdlMatchFields );
+
+		FieldSimilarity[] functions = FieldSimilarity.values();
+		functionDescriptions = new String[functions.length];
+		for (int i = 0; i < functions.length; i++)
+			functionDescriptions[i] = BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.Function." + functions[i].getCode() );
+		ColumnInfo[] matchColumns = new ColumnInfo[] {
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MatchFields.Field" ),
+					ColumnInfo.COLUMN_TYPE_CCOMBO, fieldNames, false ),
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MatchFields.Function" ),
+					ColumnInfo.COLUMN_TYPE_CCOMBO, functionDescriptions, true ),
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MatchFields.Weight" ),
+					ColumnInfo.COLUMN_TYPE_TEXT, true ),
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.MatchFields.Tolerance" ),
+					ColumnInfo.COLUMN_TYPE_TEXT, true ) };
+		wMatchFields = new TableView( transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, matchColumns,
+				meta.getMatchFields().length, lsMod, props );
+
+		FormData fdMatchFields = new FormData();
+		fdMatchFields.left = new FormAttachment( 0, 0 );
+		fdMatchFields.right = new FormAttachment( 60, -Const.MARGIN );
+		fdMatchFields.top = new FormAttachment( wlMatchFields, Const.MARGIN );
+		fdMatchFields.bottom = new FormAttachment( wOK, -2 * Const.MARGIN );
+		wMatchFields.setLayoutData( fdMatchFields );
+
+		Label wlBlockingKeys = new Label( shell, SWT.NONE );
+		wlBlockingKeys.setText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.BlockingKeys.Label" ) );
+		wlBlockingKeys.setToolTipText( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.BlockingKeys.Tooltip" ) );
+		props.setLook( wlBlockingKeys );
+
+		FormData fdlBlockingKeys = new FormDataBuilder()
+				.left( 60, 0 )
+				.top( wReferenceIndex, 4 * Const.MARGIN )
+				.result();
+		wlBlockingKeys.setLayoutData( fdlBlockingKeys );
+
+		ColumnInfo[] blockingColumns = new ColumnInfo[] {
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.BlockingKeys.Pass" ),
+					ColumnInfo.COLUMN_TYPE_TEXT, true ),
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.BlockingKeys.Field" ),
+					ColumnInfo.COLUMN_TYPE_CCOMBO, fieldNames, false ),
+			new ColumnInfo( BaseMessages.getString( PKG, "DIDuplicateDetectionDialog.BlockingKeys.Prefix" ),
+					ColumnInfo.COLUMN_TYPE_TEXT, true ) };
+		wBlockingKeys = new TableView( transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, blockingColumns,
+				meta.getBlockingField().length, lsMod, props );
+
+		FormData fdBlockingKeys = new FormData();
+		fdBlockingKeys.left = new FormAttachment( 60, 0 );
+		fdBlockingKeys.right = new FormAttachment( 100, -Const.MARGIN );
+		fdBlockingKeys.top = new FormAttachment( wlBlockingKeys, Const.MARGIN );
+		fdBlockingKeys.bottom = new FormAttachment( wOK, -2 * Const.MARGIN );
+		wBlockingKeys.setLayoutData( fdBlockingKeys );
+
 		//Listeners		
 		lsCancel = new Listener() {
 			public void handleEvent( Event e ) {
@@ -307,6 +804,24 @@ public class DIDuplicateDetectionDialog extends BaseStepDialog implements StepDi
 		
 		wRemoveDuplicates.addSelectionListener(lsRemove);
 		wRemoveSingletons.addSelectionListener(lsRemove);
+		
+		wAdaptiveWindow.addSelectionListener( new SelectionAdapter() {
+			public void widgetSelected( SelectionEvent e ) {
+				wMaxWindowSize.setEnabled(wAdaptiveWindow.getSelection());
+			}
+		} );
+		
+		wEngine.addSelectionListener( new SelectionAdapter() {
+			public void widgetSelected( SelectionEvent e ) {
+				setMinHashEnabled();
+			}
+		} );
+		
+		wVerification.addSelectionListener( new SelectionAdapter() {
+			public void widgetSelected( SelectionEvent e ) {
+				setVerificationSampleEnabled();
+			}
+		} );
 
 		lsDef = new SelectionAdapter() {
 			public void widgetDefaultSelected( SelectionEvent e ) {
@@ -367,7 +882,43 @@ public class DIDuplicateDetectionDialog extends BaseStepDialog implements StepDi
 			wRemoveSingletons.setSelection(meta.getRemoveSingletons());
 			wRemoveDuplicates.setEnabled(false);
 		}
-		
+		wStreaming.setSelection(meta.getStreaming());
+		wMemoryBudget.setText(String.valueOf(meta.getMemoryBudget()));
+		wRowsOnDisk.setSelection(meta.getRowsOnDisk());
+		wSpillDirectory.setText(Const.NVL(meta.getSpillDirectory(), ""));
+		wThreads.setText(String.valueOf(meta.getThreads()));
+		wWindowSize.setText(String.valueOf(meta.getWindowSize()));
+		wAdaptiveWindow.setSelection(meta.getAdaptiveWindow());
+		wMaxWindowSize.setText(String.valueOf(meta.getMaxWindowSize()));
+		wMaxWindowSize.setEnabled(meta.getAdaptiveWindow());
+		wFieldwise.setSelection(meta.getFieldwise());
+		wEngine.select(meta.getEngine().ordinal());
+		wQGramSize.setText(String.valueOf(meta.getQGramSize()));
+		wMinHashBands.setText(String.valueOf(meta.getMinHashBands()));
+		wMinHashRows.setText(String.valueOf(meta.getMinHashRows()));
+		setMinHashEnabled();
+		wVerification.select(meta.getVerification().ordinal());
+		wVerificationSample.setText(String.valueOf(meta.getVerificationSample()));
+		setVerificationSampleEnabled();
+		wMetricsStep.setText(Const.NVL(meta.getMetricsStream().getStepname(), ""));
+		wReferenceIndex.setText(Const.NVL(meta.getReferenceIndex(), ""));
+		for (int i = 0; i < meta.getMatchFields().length; i++) {
+			TableItem item = wMatchFields.table.getItem(i);
+			item.setText(1, Const.NVL(meta.getMatchFields()[i], ""));
+			item.setText(2, functionDescriptions[meta.getMatchFunction()[i].ordinal()]);
+			item.setText(3, String.valueOf(meta.getMatchWeight()[i]));
+			item.setText(4, String.valueOf(meta.getMatchTolerance()[i]));
+		}
+		wMatchFields.setRowNums();
+		wMatchFields.optWidth(true);
+		for (int i = 0; i < meta.getBlockingField().length; i++) {
+			TableItem item = wBlockingKeys.table.getItem(i);
+			item.setText(1, String.valueOf(meta.getBlockingPass()[i]));
+			item.setText(2, Const.NVL(meta.getBlockingField()[i], ""));
+			item.setText(3, String.valueOf(meta.getBlockingPrefix()[i]));
+		}
+		wBlockingKeys.setRowNums();
+		wBlockingKeys.optWidth(true);
 	}
 
 	private void ok() {
@@ -376,10 +927,59 @@ public class DIDuplicateDetectionDialog extends BaseStepDialog implements StepDi
 		meta.setSimColumnName(wSimColumnName.getText());
 		meta.setRemoveDuplicates(wRemoveDuplicates.getSelection());
 		meta.setRemoveSingletons(wRemoveSingletons.getSelection());
+		meta.setStreaming(wStreaming.getSelection());
+		meta.setMemoryBudget(Math.max(0, Const.toInt(wMemoryBudget.getText(), 0)));
+		meta.setRowsOnDisk(wRowsOnDisk.getSelection());
+		meta.setSpillDirectory(wSpillDirectory.getText());
+		meta.setThreads(Math.max(1, Const.toInt(wThreads.getText(), 1)));
+		meta.setWindowSize(Math.max(1, Const.toInt(wWindowSize.getText(), 4)));
+		meta.setAdaptiveWindow(wAdaptiveWindow.getSelection());
+		meta.setMaxWindowSize(Math.max(meta.getWindowSize(), Const.toInt(wMaxWindowSize.getText(), 32)));
+		meta.setFieldwise(wFieldwise.getSelection());
+		meta.setEngine(DetectionEngine.values()[Math.max(0, wEngine.getSelectionIndex())]);
+		meta.setQGramSize(Math.max(1, Const.toInt(wQGramSize.getText(), 3)));
+		meta.setMinHashBands(Math.max(1, Const.toInt(wMinHashBands.getText(), 8)));
+		meta.setMinHashRows(Math.max(1, Const.toInt(wMinHashRows.getText(), 4)));
+		meta.setVerification(VerificationPolicy.values()[Math.max(0, wVerification.getSelectionIndex())]);
+		meta.setVerificationSample(Math.max(1, Const.toInt(wVerificationSample.getText(), 8)));
+		meta.getMetricsStream().setSubject(Utils.isEmpty(wMetricsStep.getText()) ? null : wMetricsStep.getText());
+		meta.getMetricsStream().setStepMeta(transMeta.findStep(wMetricsStep.getText()));
+		meta.setReferenceIndex(wReferenceIndex.getText());
+		int matchFields = wMatchFields.nrNonEmpty();
+		meta.allocateMatchFields(matchFields);
+		for (int i = 0; i < matchFields; i++) {
+			TableItem item = wMatchFields.getNonEmpty(i);
+			meta.getMatchFields()[i] = item.getText(1);
+			int function = Const.indexOfString(item.getText(2), functionDescriptions);
+			meta.getMatchFunction()[i] = function >= 0 ? FieldSimilarity.values()[function] : FieldSimilarity.NEEDLEMAN_WUNSCH;
+			meta.getMatchWeight()[i] = Math.max(0, Const.toDouble(item.getText(3), 1));
+			meta.getMatchTolerance()[i] = Const.toDouble(item.getText(4), 0);
+		}
+		int blockingKeys = wBlockingKeys.nrNonEmpty();
+		meta.allocateBlockingKeys(blockingKeys);
+		for (int i = 0; i < blockingKeys; i++) {
+			TableItem item = wBlockingKeys.getNonEmpty(i);
+			meta.getBlockingPass()[i] = Const.toInt(item.getText(1), 1);
+			meta.getBlockingField()[i] = item.getText(2);
+			meta.getBlockingPrefix()[i] = Math.max(0, Const.toInt(item.getText(3), 0));
+		}
 		stepname = wStepname.getText();
 		dispose();
 	}
 	
+	private void setMinHashEnabled() {
+		boolean minHash = wEngine.getSelectionIndex() == DetectionEngine.MIN_HASH.ordinal();
+		wQGramSize.setEnabled(minHash || wEngine.getSelectionIndex() == DetectionEngine.ALL_PAIRS.ordinal());
+		wMinHashBands.setEnabled(minHash);
+		wMinHashRows.setEnabled(minHash);
+	}
+	
+	private void setVerificationSampleEnabled() {
+		int policy = wVerification.getSelectionIndex();
+		wVerificationSample.setEnabled(policy == VerificationPolicy.SAMPLE.ordinal()
+				|| policy == VerificationPolicy.MEDOID.ordinal());
+	}
+	
 	private void cancel() {
 		dispose();
 	}
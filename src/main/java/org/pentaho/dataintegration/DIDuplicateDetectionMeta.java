@@ -30,6 +30,7 @@ import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
+import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
 import org.pentaho.di.i18n.BaseMessages;
@@ -38,10 +39,16 @@ import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStepMeta;
+import org.pentaho.di.trans.step.StepIOMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface.StreamType;
 import org.pentaho.metastore.api.IMetaStore;
 import org.w3c.dom.Node;
 
@@ -56,12 +63,42 @@ description = "Domain Independent Approximate Duplicate Detection", categoryDesc
 public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaInterface {
 
 	private static Class<?> PKG = DIDuplicateDetection.class; // for i18n purposes, needed by Translator2!!   $NON-NLS-1$
+	private static final String DEFAULT_SPILL_DIRECTORY = "%%java.io.tmpdir%%";
+	private static final int DEFAULT_WINDOW_SIZE = 4;
+	private static final int DEFAULT_MAX_WINDOW_SIZE = 32;
+	private static final int DEFAULT_Q_GRAM_SIZE = 3;
+	private static final int DEFAULT_MIN_HASH_BANDS = 8;
+	private static final int DEFAULT_MIN_HASH_ROWS = 4;
+	private static final int DEFAULT_VERIFICATION_SAMPLE = 8;
 	
 	private String groupColumnName; // The name for the output column of approximate duplicate groups
 	private String simColumnName; // The name for the output column corresponding to the similarity values
 	private double matchThreshold; // The matching threshold value
 	private boolean removeDuplicates; // If true, keep only group representantives in the output
 	private boolean removeSingletons; // If true, remove singleton groups from the output
+	private boolean streaming; // If true, the input is sorted on the comparison key and groups are written as they close
+	private int memoryBudget; // Memory in MB for buffered rows before they are moved to disk, 0 for no limit
+	private boolean rowsOnDisk; // If true, rows are kept in a temporary file from the first one, whatever the memory budget
+	private String spillDirectory; // Directory of the temporary files used past the memory budget
+	private int threads; // Number of threads running the first pass
+	private int windowSize; // Number of groups compared with each row
+	private boolean adaptiveWindow; // If true, the window grows while rows keep joining groups and shrinks back otherwise
+	private int maxWindowSize; // Largest number of groups compared with each row in the adaptive window
+	private DetectionEngine engine; // Method used to find the pairs of rows that are compared
+	private int qGramSize; // Number of characters of the q-grams of the MinHash signatures
+	private int minHashBands; // Number of LSH bands of the MinHash signatures
+	private int minHashRows; // Number of hashes of each LSH band
+	private VerificationPolicy verification; // Members of a group that a row must match before it joins the group
+	private int verificationSample; // Number of members verified, or sampled for the medoid, of each group
+	private String referenceIndex; // File keeping the rows and groups of the previous runs, none when empty
+	private boolean fieldwise; // If true, rows are compared field by field with a weighted similarity
+	private String[] matchFields; // Input fields that make up the comparison key, all of them when empty
+	private FieldSimilarity[] matchFunction; // Similarity function of each match field compared on its own
+	private double[] matchWeight; // Weight of each match field compared on its own
+	private double[] matchTolerance; // Difference of two numeric values of each match field with a similarity of 0
+	private int[] blockingPass; // Number of the extra pass whose sort key each blocking key component belongs to
+	private String[] blockingField; // Input field of each blocking key component
+	private int[] blockingPrefix; // Number of leading characters of the field in each component, 0 for all
 
 	public DIDuplicateDetectionMeta() {
 		super(); // allocate BaseStepMeta
@@ -72,9 +109,39 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 	}
 
 	public Object clone() {
-		Object retval = super.clone();
+		DIDuplicateDetectionMeta retval = (DIDuplicateDetectionMeta) super.clone();
+		retval.allocateMatchFields(matchFields.length);
+		System.arraycopy(matchFields, 0, retval.matchFields, 0, matchFields.length);
+		System.arraycopy(matchFunction, 0, retval.matchFunction, 0, matchFunction.length);
+		System.arraycopy(matchWeight, 0, retval.matchWeight, 0, matchWeight.length);
+		System.arraycopy(matchTolerance, 0, retval.matchTolerance, 0, matchTolerance.length);
+		retval.allocateBlockingKeys(blockingField.length);
+		System.arraycopy(blockingPass, 0, retval.blockingPass, 0, blockingPass.length);
+		System.arraycopy(blockingField, 0, retval.blockingField, 0, blockingField.length);
+		System.arraycopy(blockingPrefix, 0, retval.blockingPrefix, 0, blockingPrefix.length);
 		return retval;
 	}
+	
+	/**
+	 * Method to allocate the match fields
+	 * @param count the number of fields
+	 */
+	public void allocateMatchFields(int count) {
+		matchFields = new String[count];
+		matchFunction = new FieldSimilarity[count];
+		matchWeight = new double[count];
+		matchTolerance = new double[count];
+	}
+
+	/**
+	 * Method to allocate the blocking key components
+	 * @param count the number of components
+	 */
+	public void allocateBlockingKeys(int count) {
+		blockingPass = new int[count];
+		blockingField = new String[count];
+		blockingPrefix = new int[count];
+	}
 
 	private void readData( Node stepnode ) {
 		groupColumnName = XMLHandler.getTagValue(stepnode, "groupColumnName");
@@ -94,6 +161,98 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 		} catch (Exception e) {
 			removeSingletons = false;
 		}
+		try {
+			streaming = Boolean.parseBoolean(XMLHandler.getTagValue(stepnode, "streaming"));
+		} catch (Exception e) {
+			streaming = false;
+		}
+		try {
+			memoryBudget = Integer.parseInt(XMLHandler.getTagValue(stepnode, "memoryBudget"));
+		} catch (Exception e) {
+			memoryBudget = 0;
+		}
+		try {
+			rowsOnDisk = Boolean.parseBoolean(XMLHandler.getTagValue(stepnode, "rowsOnDisk"));
+		} catch (Exception e) {
+			rowsOnDisk = false;
+		}
+		spillDirectory = Const.NVL(XMLHandler.getTagValue(stepnode, "spillDirectory"), DEFAULT_SPILL_DIRECTORY);
+		try {
+			threads = Math.max(1, Integer.parseInt(XMLHandler.getTagValue(stepnode, "threads")));
+		} catch (Exception e) {
+			threads = 1;
+		}
+		try {
+			windowSize = Math.max(1, Integer.parseInt(XMLHandler.getTagValue(stepnode, "windowSize")));
+		} catch (Exception e) {
+			windowSize = DEFAULT_WINDOW_SIZE;
+		}
+		try {
+			adaptiveWindow = Boolean.parseBoolean(XMLHandler.getTagValue(stepnode, "adaptiveWindow"));
+		} catch (Exception e) {
+			adaptiveWindow = false;
+		}
+		try {
+			maxWindowSize = Math.max(windowSize, Integer.parseInt(XMLHandler.getTagValue(stepnode, "maxWindowSize")));
+		} catch (Exception e) {
+			maxWindowSize = Math.max(windowSize, DEFAULT_MAX_WINDOW_SIZE);
+		}
+		engine = DetectionEngine.getFromCode(XMLHandler.getTagValue(stepnode, "engine"));
+		try {
+			qGramSize = Math.max(1, Integer.parseInt(XMLHandler.getTagValue(stepnode, "qGramSize")));
+		} catch (Exception e) {
+			qGramSize = DEFAULT_Q_GRAM_SIZE;
+		}
+		try {
+			minHashBands = Math.max(1, Integer.parseInt(XMLHandler.getTagValue(stepnode, "minHashBands")));
+		} catch (Exception e) {
+			minHashBands = DEFAULT_MIN_HASH_BANDS;
+		}
+		try {
+			minHashRows = Math.max(1, Integer.parseInt(XMLHandler.getTagValue(stepnode, "minHashRows")));
+		} catch (Exception e) {
+			minHashRows = DEFAULT_MIN_HASH_ROWS;
+		}
+		verification = VerificationPolicy.getFromCode(XMLHandler.getTagValue(stepnode, "verification"));
+		try {
+			verificationSample = Math.max(1, Integer.parseInt(XMLHandler.getTagValue(stepnode, "verificationSample")));
+		} catch (Exception e) {
+			verificationSample = DEFAULT_VERIFICATION_SAMPLE;
+		}
+		// Resolved to the step in searchInfoAndTargetSteps
+		getMetricsStream().setSubject(XMLHandler.getTagValue(stepnode, "metricsStep"));
+		referenceIndex = XMLHandler.getTagValue(stepnode, "referenceIndex");
+		try {
+			fieldwise = Boolean.parseBoolean(XMLHandler.getTagValue(stepnode, "fieldwise"));
+		} catch (Exception e) {
+			fieldwise = false;
+		}
+		Node fields = XMLHandler.getSubNode(stepnode, "matchFields");
+		allocateMatchFields(XMLHandler.countNodes(fields, "field"));
+		for (int i = 0; i < matchFields.length; i++) {
+			Node field = XMLHandler.getSubNodeByNr(fields, "field", i);
+			matchFields[i] = XMLHandler.getTagValue(field, "name");
+			matchFunction[i] = FieldSimilarity.getFromCode(XMLHandler.getTagValue(field, "function"));
+			try {
+				matchWeight[i] = Math.max(0, Double.parseDouble(XMLHandler.getTagValue(field, "weight")));
+			} catch (Exception e) {
+				matchWeight[i] = 1;
+			}
+			try {
+				matchTolerance[i] = Double.parseDouble(XMLHandler.getTagValue(field, "tolerance"));
+			} catch (Exception e) {
+				matchTolerance[i] = 0;
+			}
+		}
+		Node blockingKeys = XMLHandler.getSubNode(stepnode, "blockingKeys");
+		int count = XMLHandler.countNodes(blockingKeys, "blockingKey");
+		allocateBlockingKeys(count);
+		for (int i = 0; i < count; i++) {
+			Node blockingKey = XMLHandler.getSubNodeByNr(blockingKeys, "blockingKey", i);
+			blockingPass[i] = Const.toInt(XMLHandler.getTagValue(blockingKey, "pass"), 1);
+			blockingField[i] = XMLHandler.getTagValue(blockingKey, "field");
+			blockingPrefix[i] = Const.toInt(XMLHandler.getTagValue(blockingKey, "prefix"), 0);
+		}
 	}
 	
 	public String getXML() {    
@@ -103,6 +262,42 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 		retval.append(XMLHandler.addTagValue("matchThreshold", matchThreshold)).append(Const.CR);
 		retval.append(XMLHandler.addTagValue("removeDuplicates", String.valueOf(removeDuplicates))).append(Const.CR);
 		retval.append(XMLHandler.addTagValue("removeSingletons", String.valueOf(removeSingletons))).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("streaming", String.valueOf(streaming))).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("memoryBudget", memoryBudget)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("rowsOnDisk", String.valueOf(rowsOnDisk))).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("spillDirectory", spillDirectory)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("threads", threads)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("windowSize", windowSize)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("adaptiveWindow", String.valueOf(adaptiveWindow))).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("maxWindowSize", maxWindowSize)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("engine", engine.getCode())).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("qGramSize", qGramSize)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("minHashBands", minHashBands)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("minHashRows", minHashRows)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("verification", verification.getCode())).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("verificationSample", verificationSample)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("metricsStep", getMetricsStream().getStepname())).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("referenceIndex", referenceIndex)).append(Const.CR);
+		retval.append(XMLHandler.addTagValue("fieldwise", String.valueOf(fieldwise))).append(Const.CR);
+		retval.append("    <matchFields>").append(Const.CR);
+		for (int i = 0; i < matchFields.length; i++) {
+			retval.append("      <field>").append(Const.CR);
+			retval.append("        ").append(XMLHandler.addTagValue("name", matchFields[i]));
+			retval.append("        ").append(XMLHandler.addTagValue("function", matchFunction[i].getCode()));
+			retval.append("        ").append(XMLHandler.addTagValue("weight", matchWeight[i]));
+			retval.append("        ").append(XMLHandler.addTagValue("tolerance", matchTolerance[i]));
+			retval.append("      </field>").append(Const.CR);
+		}
+		retval.append("    </matchFields>").append(Const.CR);
+		retval.append("    <blockingKeys>").append(Const.CR);
+		for (int i = 0; i < blockingField.length; i++) {
+			retval.append("      <blockingKey>").append(Const.CR);
+			retval.append("        ").append(XMLHandler.addTagValue("pass", blockingPass[i]));
+			retval.append("        ").append(XMLHandler.addTagValue("field", blockingField[i]));
+			retval.append("        ").append(XMLHandler.addTagValue("prefix", blockingPrefix[i]));
+			retval.append("      </blockingKey>").append(Const.CR);
+		}
+		retval.append("    </blockingKeys>").append(Const.CR);
 		return retval.toString();
 	}   
 
@@ -112,6 +307,26 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 		matchThreshold = 0.5;
 		removeDuplicates = false;
 		removeSingletons = false;
+		streaming = false;
+		memoryBudget = 0;
+		rowsOnDisk = false;
+		spillDirectory = DEFAULT_SPILL_DIRECTORY;
+		threads = 1;
+		windowSize = DEFAULT_WINDOW_SIZE;
+		adaptiveWindow = false;
+		maxWindowSize = DEFAULT_MAX_WINDOW_SIZE;
+		engine = DetectionEngine.SORTED_NEIGHBOURHOOD;
+		qGramSize = DEFAULT_Q_GRAM_SIZE;
+		minHashBands = DEFAULT_MIN_HASH_BANDS;
+		minHashRows = DEFAULT_MIN_HASH_ROWS;
+		verification = VerificationPolicy.ALL;
+		verificationSample = DEFAULT_VERIFICATION_SAMPLE;
+		getMetricsStream().setStepMeta(null);
+		getMetricsStream().setSubject(null);
+		referenceIndex = null;
+		fieldwise = false;
+		allocateMatchFields(0);
+		allocateBlockingKeys(0);
 	}
 
 	public void readRep( Repository rep, IMetaStore metaStore, ObjectId id_step, List<DatabaseMeta> databases ) throws KettleException {
@@ -123,6 +338,12 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 
 	public void getFields( RowMetaInterface rowMeta, String origin, RowMetaInterface[] info, StepMeta nextStep, 
 			VariableSpace space, Repository repository, IMetaStore metaStore ) throws KettleStepException {
+		// The metrics step receives the metrics row instead of the input rows
+		if (nextStep != null && nextStep.equals(getMetricsStream().getStepMeta())) {
+			rowMeta.clear();
+			getMetricsFields(rowMeta);
+			return;
+		}
 		try {
 			ValueMetaInterface v = ValueMetaFactory.createValueMeta( getGroupColumnName(),  ValueMetaInterface.TYPE_INTEGER );
 			rowMeta.addValueMeta( v );
@@ -137,6 +358,51 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 		}
 	}
 
+	/**
+	 * Method to add the fields of the metrics row
+	 * @param rowMeta the row metadata receiving the fields, named as in {@link DetectionMetrics#NAMES}
+	 */
+	public void getMetricsFields( RowMetaInterface rowMeta ) throws KettleStepException {
+		try {
+			for (int i = 0; i < DetectionMetrics.NAMES.length; i++)
+				rowMeta.addValueMeta( ValueMetaFactory.createValueMeta( DetectionMetrics.NAMES[i],
+						i < DetectionMetrics.NAMES.length - 1 ? ValueMetaInterface.TYPE_INTEGER : ValueMetaInterface.TYPE_STRING ) );
+		} catch (KettlePluginException e) {
+			throw new KettleStepException( e );
+		}
+	}
+
+	/**
+	 * Method to obtain the step metadata input and output, with the target stream of the metrics row
+	 * @return StepIOMetaInterface with a single target stream
+	 */
+	public StepIOMetaInterface getStepIOMeta() {
+		StepIOMetaInterface ioMeta = super.getStepIOMeta(false);
+		if (ioMeta == null) {
+			ioMeta = new StepIOMeta(true, true, false, false, false, false);
+			ioMeta.addStream(new Stream(StreamType.TARGET, null, BaseMessages.getString( PKG,
+					"DIDuplicateDetectionMeta.MetricsStream.Description" ), StreamIcon.TARGET, null));
+			setStepIOMeta(ioMeta);
+		}
+		return ioMeta;
+	}
+
+	/**
+	 * @return the target stream of the step receiving the metrics row, whose step is null when no step does
+	 */
+	public StreamInterface getMetricsStream() {
+		return getStepIOMeta().getTargetStreams().get(0);
+	}
+
+	public void searchInfoAndTargetSteps(List<StepMeta> steps) {
+		for (StreamInterface stream : getStepIOMeta().getTargetStreams())
+			stream.setStepMeta(StepMeta.findStep(steps, (String) stream.getSubject()));
+	}
+
+	public void resetStepIoMeta() {
+		// The target stream holds the metrics step, so it is kept
+	}
+
 	public void check( List<CheckResultInterface> remarks, TransMeta transMeta, 
 			StepMeta stepMeta, RowMetaInterface prev, String input[], String output[],
 			RowMetaInterface info, VariableSpace space, Repository repository, 
@@ -160,6 +426,16 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 			cr = new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages.getString( PKG, "DIDuplicateDetectionMeta.CheckResult.NoInputReceivedFromOtherSteps" ), stepMeta ); 
 			remarks.add( cr );
 		}
+
+		// The metrics row needs a hop to its step
+		StreamInterface metricsStream = getMetricsStream();
+		String metricsStepName = metricsStream.getStepMeta() != null ? metricsStream.getStepname()
+				: (String) metricsStream.getSubject();
+		if ( !Utils.isEmpty( metricsStepName ) && ( metricsStream.getStepMeta() == null
+				|| Const.indexOfString( metricsStepName, output ) < 0 ) ) {
+			cr = new CheckResult( CheckResultInterface.TYPE_RESULT_ERROR, BaseMessages.getString( PKG, "DIDuplicateDetectionMeta.CheckResult.MetricsStepNotFound", metricsStepName ), stepMeta );
+			remarks.add( cr );
+		}
 	}
 
 	public StepInterface getStep( StepMeta stepMeta, StepDataInterface stepDataInterface, int cnr, TransMeta tr, Trans trans ) {
@@ -213,4 +489,160 @@ public class DIDuplicateDetectionMeta extends BaseStepMeta implements StepMetaIn
 	public boolean getRemoveSingletons() {
 		return removeSingletons;
 	}
+	
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	public boolean getStreaming() {
+		return streaming;
+	}
+	
+	public void setMemoryBudget(int memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+	
+	public int getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	public void setRowsOnDisk(boolean rowsOnDisk) {
+		this.rowsOnDisk = rowsOnDisk;
+	}
+	
+	public boolean getRowsOnDisk() {
+		return rowsOnDisk;
+	}
+	
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+	
+	public String getSpillDirectory() {
+		return spillDirectory;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
+	
+	public void setAdaptiveWindow(boolean adaptiveWindow) {
+		this.adaptiveWindow = adaptiveWindow;
+	}
+	
+	public boolean getAdaptiveWindow() {
+		return adaptiveWindow;
+	}
+	
+	public void setMaxWindowSize(int maxWindowSize) {
+		this.maxWindowSize = maxWindowSize;
+	}
+	
+	public int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+	
+	public void setEngine(DetectionEngine engine) {
+		this.engine = engine;
+	}
+	
+	public DetectionEngine getEngine() {
+		return engine;
+	}
+	
+	public void setQGramSize(int qGramSize) {
+		this.qGramSize = qGramSize;
+	}
+	
+	public int getQGramSize() {
+		return qGramSize;
+	}
+	
+	public void setMinHashBands(int minHashBands) {
+		this.minHashBands = minHashBands;
+	}
+	
+	public int getMinHashBands() {
+		return minHashBands;
+	}
+	
+	public void setMinHashRows(int minHashRows) {
+		this.minHashRows = minHashRows;
+	}
+	
+	public int getMinHashRows() {
+		return minHashRows;
+	}
+	
+	public void setVerification(VerificationPolicy verification) {
+		this.verification = verification;
+	}
+	
+	public VerificationPolicy getVerification() {
+		return verification;
+	}
+	
+	public void setVerificationSample(int verificationSample) {
+		this.verificationSample = verificationSample;
+	}
+	
+	public int getVerificationSample() {
+		return verificationSample;
+	}
+	
+	public void setReferenceIndex(String referenceIndex) {
+		this.referenceIndex = referenceIndex;
+	}
+	
+	public String getReferenceIndex() {
+		return referenceIndex;
+	}
+	
+	public void setFieldwise(boolean fieldwise) {
+		this.fieldwise = fieldwise;
+	}
+	
+	public boolean getFieldwise() {
+		return fieldwise;
+	}
+	
+	public String[] getMatchFields() {
+		return matchFields;
+	}
+	
+	public FieldSimilarity[] getMatchFunction() {
+		return matchFunction;
+	}
+	
+	public double[] getMatchWeight() {
+		return matchWeight;
+	}
+	
+	public double[] getMatchTolerance() {
+		return matchTolerance;
+	}
+	
+	public int[] getBlockingPass() {
+		return blockingPass;
+	}
+	
+	public String[] getBlockingField() {
+		return blockingField;
+	}
+	
+	public int[] getBlockingPrefix() {
+		return blockingPrefix;
+	}
 }
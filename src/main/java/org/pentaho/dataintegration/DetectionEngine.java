@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Methods used to find the pairs of rows that are compared.
+ */
+public enum DetectionEngine {
+	SORTED_NEIGHBOURHOOD("sortedNeighbourhood"), // Window over the rows sorted on their keys and reversed keys
+	MIN_HASH("minHash"), // Rows sharing a MinHash LSH bucket of their q-grams, compared as they arrive
+	ALL_PAIRS("allPairs"); // Every pair that can reach the threshold, through a prefix-filtered q-gram index
+
+	private final String code; // Name of the engine in the step XML
+
+	private DetectionEngine(String code) {
+		this.code = code;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * Method to obtain an engine from its name in the step XML
+	 * @param code the name of the engine
+	 * @return DetectionEngine with that name, or SORTED_NEIGHBOURHOOD if there is none
+	 */
+	public static DetectionEngine getFromCode(String code) {
+		for (DetectionEngine engine : values()) {
+			if (engine.code.equalsIgnoreCase(code))
+				return engine;
+		}
+		return SORTED_NEIGHBOURHOOD;
+	}
+}
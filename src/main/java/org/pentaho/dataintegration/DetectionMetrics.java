@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Measures of a run of the step: rows and key data held, time spent in each phase, work of the similarity
+ * kernel, merges and sizes of the groups. The step logs them, and can write them as one row to a step of its own,
+ * with the fields named in {@link #NAMES}.
+ */
+public class DetectionMetrics {
+
+	/**
+	 * Phases of a run, timed on their own
+	 */
+	public enum Phase {
+		READ, // Reading the input, with the comparisons made as rows arrive
+		SORT, // Sorting the rows for each pass
+		FIRST_PASS, // First pass, or join pass of a candidate index
+		SECOND_PASS, // Pass over the reversed comparison keys
+		BLOCKING_PASSES, // Extra passes over the blocking keys
+		OUTPUT // Writing the rows with their groups
+	}
+
+	/**
+	 * Names of the fields of the metrics row, in the order of {@link #getValues()}. All are integers, but the last
+	 * one, the group size histogram, which is a string.
+	 */
+	public static final String[] NAMES = { "rows", "bufferedRows", "keyBytes", "readTime", "sortTime", "firstPassTime",
+			"secondPassTime", "blockingPassTime", "outputTime", "alignments", "lengthPrunes", "countPrunes", "earlyExits",
+			"cacheHits", "cacheMisses", "candidates", "merges", "groups", "largestGroup", "peakWindow", "groupSizes" };
+
+	private final long[] phaseNanos = new long[Phase.values().length]; // Time spent in each phase
+	private long rows; // Number of rows added to the detector
+	private long bufferedRows; // Largest number of rows held at once
+	private long keyBytes; // Largest number of bytes of comparison keys, blocking keys and field values held at once
+	private long alignments;
+	private long lengthPrunes;
+	private long countPrunes;
+	private long earlyExits;
+	private long cacheHits;
+	private long cacheMisses;
+	private long candidates; // Candidate pairs returned by the candidate index
+	private long merges; // Number of times two groups were merged
+	private long groups;
+	private long largestGroup;
+	private int peakWindow; // Largest number of groups held by the window of a pass
+	private long[] groupSizes = new long[32]; // Number of groups by size class: 1, 2, 3-4, 5-8...
+
+	/**
+	 * Method to add the time elapsed since the start of a phase to it
+	 * @param phase the phase
+	 * @param start the value of System.nanoTime() when the phase started
+	 * @return long corresponding to the current value of System.nanoTime(), the start of the next phase
+	 */
+	public long lap(Phase phase, long start) {
+		long now = System.nanoTime();
+		phaseNanos[phase.ordinal()] += now - start;
+		return now;
+	}
+
+	/**
+	 * Method to record the number of rows and bytes of key data held, keeping the largest values seen
+	 * @param detector the detector holding the keys
+	 * @param heldRows the number of rows held by the step
+	 */
+	public void sample(DuplicateDetector detector, long heldRows) {
+		long bytes = detector.getKeys().getBytes();
+		for (int pass = 0; pass < detector.getBlockingPassCount(); pass++)
+			bytes += detector.getBlockingKeys(pass).getBytes();
+		if (detector.getFields() != null)
+			bytes += detector.getFields().getBytes();
+		keyBytes = Math.max(keyBytes, bytes);
+		bufferedRows = Math.max(bufferedRows, heldRows);
+	}
+
+	/**
+	 * Method to count a final group of the run, as it is written by a detector recycling the ids of its rows
+	 * @param size the number of rows of the group
+	 */
+	public void addGroup(int size) {
+		rows += size;
+		groups++;
+		largestGroup = Math.max(largestGroup, size);
+		groupSizes[32 - Integer.numberOfLeadingZeros(size - 1)]++;
+	}
+
+	/**
+	 * Method to collect the counters of a detector once the groups are final. The groups of a detector recycling
+	 * the ids of its rows are no longer held, and are counted with {@link #addGroup(int)} as they are written.
+	 * @param detector the detector
+	 */
+	public void collect(DuplicateDetector detector) {
+		SimilarityKernel kernel = detector.getKernel();
+		alignments = kernel.getAlignments();
+		lengthPrunes = kernel.getLengthPrunes();
+		countPrunes = kernel.getCountPrunes();
+		earlyExits = kernel.getEarlyExits();
+		cacheHits = detector.getSimilarityCache().getHits();
+		cacheMisses = detector.getSimilarityCache().getMisses();
+		if (detector.getCandidateIndex() != null)
+			candidates = detector.getCandidateIndex().getCollisions();
+		peakWindow = detector.getPeakWindow();
+		if (!detector.isRecycling()) {
+			UnionFind found = detector.getGroups();
+			rows = 0;
+			groups = 0;
+			largestGroup = 0;
+			groupSizes = new long[32];
+			for (int node = 0; node < found.count(); node++) {
+				// Rows read from a reference index stay alone in their groups and are not rows of the run
+				if (found.representative(node) == node && !detector.isReference(node))
+					addGroup(found.size(node));
+			}
+		}
+		// Each merge joins two groups into one
+		merges = rows - groups;
+	}
+
+	/**
+	 * Method to format the group size histogram
+	 * @return String with the number of groups of each size class, such as "1:120 2:40 3-4:12"
+	 */
+	public String formatGroupSizes() {
+		StringBuilder text = new StringBuilder();
+		for (int k = 0; k < groupSizes.length; k++) {
+			if (groupSizes[k] == 0)
+				continue;
+			if (text.length() > 0)
+				text.append(' ');
+			long high = 1L << k;
+			long low = k < 2 ? high : (high >> 1) + 1;
+			text.append(low);
+			if (high > low)
+				text.append('-').append(high);
+			text.append(':').append(groupSizes[k]);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return the values of the metrics row, in the order of {@link #NAMES}, with times in milliseconds
+	 */
+	public Object[] getValues() {
+		return new Object[] { rows, bufferedRows, keyBytes, getTime(Phase.READ), getTime(Phase.SORT),
+				getTime(Phase.FIRST_PASS), getTime(Phase.SECOND_PASS), getTime(Phase.BLOCKING_PASSES),
+				getTime(Phase.OUTPUT), alignments, lengthPrunes, countPrunes, earlyExits, cacheHits, cacheMisses,
+				candidates, merges, groups, largestGroup, (long) peakWindow, formatGroupSizes() };
+	}
+
+	/**
+	 * @param phase a phase of the run
+	 * @return the time spent in the phase, in milliseconds
+	 */
+	public long getTime(Phase phase) {
+		return phaseNanos[phase.ordinal()] / 1000000;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getBufferedRows() {
+		return bufferedRows;
+	}
+
+	public long getKeyBytes() {
+		return keyBytes;
+	}
+
+	public long getAlignments() {
+		return alignments;
+	}
+
+	public long getLengthPrunes() {
+		return lengthPrunes;
+	}
+
+	public long getCountPrunes() {
+		return countPrunes;
+	}
+
+	public long getEarlyExits() {
+		return earlyExits;
+	}
+
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	public long getCandidates() {
+		return candidates;
+	}
+
+	public long getMerges() {
+		return merges;
+	}
+
+	public long getGroups() {
+		return groups;
+	}
+
+	public long getLargestGroup() {
+		return largestGroup;
+	}
+
+	public int getPeakWindow() {
+		return peakWindow;
+	}
+}
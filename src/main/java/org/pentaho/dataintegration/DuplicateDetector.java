@@ -0,0 +1,892 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.Arrays;
+
+/**
+ * Domain-independent detection of approximate duplicates over the comparison keys of the rows, with the double
+ * sorted neighbourhood method.
+ *
+ * The first pass slides a window of groups over the rows sorted on their keys, and the second pass over the rows
+ * sorted on their reversed keys, merging a row into a group when it matches every member of the group. Extra
+ * passes can slide the window over the rows sorted on blocking keys, such as the first characters of a few
+ * fields, so that rows whose comparison keys differ early still meet in some pass. All passes merge into the
+ * same groups. Instead of the first two passes, rows can be compared as they are added with the rows found by a
+ * {@link CandidateIndex}, such as the rows sharing a bucket of a {@link MinHashIndex}, which needs no sort and
+ * also finds duplicates whose keys sort far apart.
+ * Rows are compared on their whole comparison keys, or field by field with a
+ * {@link FieldwiseSimilarity}, while the passes still sort them on their keys. The detector does not depend on
+ * Kettle, so the passes can be run and measured on their own.
+ *
+ * Each row is aligned at once against all the groups of the window, and against all the members of a group it
+ * may join, so that the kernel prepares the row once for all of them. Verifying every member bounds how far a group
+ * can drift from its rows, but its cost grows with the group, so a {@link VerificationPolicy} can verify the
+ * representative only, a fixed sample of members or a cached medoid of each group instead.
+ *
+ * When rows sorted on their keys are fed one by one to the first pass, the groups leaving the window are final,
+ * and the ids of their rows can be recycled once they are released, so that the detector only holds the rows of
+ * the groups still open, however long the input.
+ *
+ * A detector uses the similarity kernel of the thread that creates it, and must be used from that thread.
+ */
+public class DuplicateDetector {
+
+	private static final int SIMILARITY_CACHE_SIZE = 1 << 20; // Number of row pairs whose similarity is cached
+	private static final int PROGRESS_ROWS = 1024; // Members verified between two checks for a stop, a power of 2
+	private static final long PROGRESS_NANOS = 100000000L; // Time between two calls to the monitor
+
+	private final double matchThreshold; // Minimum similarity of two rows of a group
+	private final int windowSize; // Number of groups compared with each row
+	private final int maxWindowSize; // Largest number of groups compared with each row when the window is adaptive
+	private int windowLimit; // Number of groups currently kept in the window
+	private int peakWindow; // Largest number of groups kept in the window of a pass
+	private final int threads; // Number of ranges of the first pass run in parallel
+	private final KeyArena keys; // Comparison key of each row, by row id
+	private final KeyArena[] blockingKeys; // Sort key of each row in each extra pass, by row id
+	private final UnionFind groups; // Groups of approximate duplicates
+	private final SimilarityCache similarityCache; // Similarity of recently compared pairs of rows, by order of addition
+	private final FieldwiseSimilarity fields; // Similarity of rows compared field by field, null to compare their keys
+	private final CandidateIndex candidates; // Finds the rows compared as they are added, null for the first two passes
+	private final SimilarityKernel kernel;
+	private VerificationPolicy verification = VerificationPolicy.ALL; // Members of a group a row must match to join it
+	private int verificationSample = 8; // Number of members verified, or sampled for the medoid, of each group
+	private int[] medoids = new int[0]; // Medoid of each group, by representative
+	private int[] medoidSizes = new int[0]; // Size of each group when its medoid was chosen, by representative
+	private PassMonitor monitor; // Follows the passes and can stop them, null for none
+	private long nextProgress; // Value of System.nanoTime() from which the monitor is called again
+	private int processed; // Rows of the running pass processed so far, as reported to the monitor
+	private int total; // Rows of the running pass
+	private double[] mergeSimilarities = new double[1024]; // Similarity of each row to the representative it was merged with
+	private int[] mergeRepresentatives = new int[1024]; // That representative plus one, by row id, 0 when none was recorded
+	private boolean stopped; // Whether the monitor stopped the detection
+	private int[] referenceRows = new int[16]; // Ids of the rows read from a reference index, in increasing order
+	private int referenceCount; // Number of rows read from a reference index
+	private int runRows; // Number of rows of the run added
+	private boolean recycling; // Whether the ids of released rows are given to the rows added after them
+	private int[] freeIds = new int[16]; // Ids of the rows released, when ids are recycled
+	private int freeCount;
+	private int[] rowNumbers = new int[16]; // Number of each row in the run, -1 for a reference row, by id, when ids are recycled
+	private int[] windowRows; // Representatives of the groups of the window, most recent first
+	private boolean[] windowMatches; // Whether the row being matched matches each representative of the window
+	private int[] members = new int[16]; // Members of the group being verified
+	private int[] pendingRows = new int[16]; // Rows of a batch missing from the similarity cache
+	private int[] pendingSlots = new int[16]; // Position of each of these rows in the batch
+	private double[] similarities = new double[16]; // Similarities of the rows of a batch
+
+	/**
+	 * @param matchThreshold the minimum similarity of two rows of a group
+	 * @param windowSize the number of groups compared with each row
+	 * @param maxWindowSize the largest number of groups compared with each row, larger than windowSize for an
+	 * adaptive window
+	 * @param threads the number of ranges of the first pass run in parallel
+	 * @param blockingPasses the number of extra passes sorted on blocking keys
+	 */
+	public DuplicateDetector(double matchThreshold, int windowSize, int maxWindowSize, int threads, int blockingPasses) {
+		this(matchThreshold, windowSize, maxWindowSize, threads, blockingPasses, null, null);
+	}
+
+	/**
+	 * @param matchThreshold the minimum similarity of two rows of a group
+	 * @param windowSize the number of groups compared with each row
+	 * @param maxWindowSize the largest number of groups compared with each row, larger than windowSize for an
+	 * adaptive window
+	 * @param threads the number of ranges of the first pass run in parallel
+	 * @param blockingPasses the number of extra passes sorted on blocking keys
+	 * @param fields the similarity of rows compared field by field, or null to compare their comparison keys
+	 * @param candidates the index of the rows compared as they are added, or null to run the first two passes
+	 */
+	public DuplicateDetector(double matchThreshold, int windowSize, int maxWindowSize, int threads, int blockingPasses,
+			FieldwiseSimilarity fields, CandidateIndex candidates) {
+		this.matchThreshold = matchThreshold;
+		this.windowSize = windowSize;
+		this.maxWindowSize = Math.max(windowSize, maxWindowSize);
+		windowLimit = windowSize;
+		this.threads = threads;
+		keys = new KeyArena();
+		blockingKeys = new KeyArena[blockingPasses];
+		for (int pass = 0; pass < blockingPasses; pass++)
+			blockingKeys[pass] = new KeyArena();
+		groups = new UnionFind(5000);
+		similarityCache = new SimilarityCache(SIMILARITY_CACHE_SIZE);
+		kernel = SimilarityKernel.forCurrentThread();
+		this.fields = fields;
+		this.candidates = candidates;
+		windowRows = new int[this.maxWindowSize + 1];
+		windowMatches = new boolean[this.maxWindowSize + 1];
+	}
+
+	/**
+	 * Method to choose the members of a group that a row must match, besides the representative, before it joins
+	 * the group
+	 * @param verification the verification policy
+	 * @param verificationSample the number of members verified, or sampled for the medoid, of each group
+	 */
+	public void setVerification(VerificationPolicy verification, int verificationSample) {
+		this.verification = verification;
+		this.verificationSample = Math.max(1, verificationSample);
+	}
+
+	/**
+	 * Method to give the ids of the rows released to the rows added after them, so that a detector fed one row at a
+	 * time with {@link #matchFirstPass(int, WindowBuffer)} only holds the rows of the groups still open. An id then
+	 * only stands for a row until it is released. It must be set before any row is added.
+	 * @param recycling true to recycle the ids of the rows released
+	 */
+	public void setRecycling(boolean recycling) {
+		this.recycling = recycling;
+	}
+
+	/**
+	 * Method to follow the passes run from now on
+	 * @param monitor the monitor, or null for none
+	 */
+	public void setMonitor(PassMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Method to record the progress of a pass before each row, reporting it to the monitor when it is due
+	 * @param processed the number of rows of the pass processed so far
+	 * @param total the number of rows of the pass
+	 * @return true if the pass goes on, false if the monitor stopped the detection
+	 */
+	private boolean checkProgress(int processed, int total) {
+		this.processed = processed;
+		this.total = total;
+		return !checkStop();
+	}
+
+	/**
+	 * Method to call the monitor a few times per second, from the rows of a pass and from the long verifications
+	 * of a row against a large group, so that a stop is seen within a fraction of a second
+	 * @return true if the monitor stopped the detection
+	 */
+	private boolean checkStop() {
+		if (monitor != null && !stopped) {
+			long now = System.nanoTime();
+			if (now - nextProgress >= 0) {
+				nextProgress = now + PROGRESS_NANOS;
+				stopped = !monitor.progress(processed, total);
+			}
+		}
+		return stopped;
+	}
+
+	/**
+	 * Method to add a row in a group of its own, or with a candidate index in the groups of the rows already
+	 * added that the index finds and that match it
+	 * @param key the comparison key of the row
+	 * @return int corresponding to the id of the row
+	 */
+	public int add(CharSequence key) {
+		return add(key, null, null);
+	}
+
+	/**
+	 * Method to add a row of a {@link ReferenceIndex} in a group of its own, so that rows can be compared with it.
+	 * It is not part of any pass, is never merged and is not counted as a row of the run.
+	 * @param key the comparison key of the row
+	 * @param fieldValues the value of each field compared on its own, or null if rows are compared on their keys
+	 * @return int corresponding to the id of the row
+	 */
+	public int addReference(CharSequence key, CharSequence[] fieldValues) {
+		int node = nextId();
+		keys.set(node, key);
+		if (fields != null)
+			fields.set(node, fieldValues);
+		// Blocking keys are kept by row id as well
+		for (int pass = 0; pass < blockingKeys.length; pass++)
+			blockingKeys[pass].set(node, "");
+		addGroup(node, -1);
+		// Recycled ids are not in increasing order, so rows are numbered through rowNumbers instead
+		if (!recycling) {
+			if (referenceCount == referenceRows.length)
+				referenceRows = Arrays.copyOf(referenceRows, referenceCount * 2);
+			referenceRows[referenceCount] = node;
+		}
+		referenceCount++;
+		return node;
+	}
+
+	/**
+	 * Method to choose the id of a row being added, the id of a row released when ids are recycled, or otherwise
+	 * the next id
+	 * @return int corresponding to the id
+	 */
+	private int nextId() {
+		return freeCount > 0 ? freeIds[--freeCount] : groups.count();
+	}
+
+	/**
+	 * Method to put a row being added in a group of its own, clearing what was recorded for a row released with the
+	 * same id
+	 * @param node the id of the row
+	 * @param rowNumber the number of the row in the run, -1 for a reference row
+	 */
+	private void addGroup(int node, int rowNumber) {
+		if (node == groups.count())
+			groups.add();
+		else
+			groups.reuse(node);
+		if (node == mergeRepresentatives.length) {
+			mergeSimilarities = Arrays.copyOf(mergeSimilarities, node * 2);
+			mergeRepresentatives = Arrays.copyOf(mergeRepresentatives, node * 2);
+		}
+		mergeRepresentatives[node] = 0;
+		if (node < medoidSizes.length)
+			medoidSizes[node] = 0;
+		if (recycling) {
+			if (node == rowNumbers.length)
+				rowNumbers = Arrays.copyOf(rowNumbers, node * 2);
+			rowNumbers[node] = rowNumber;
+		}
+	}
+
+	/**
+	 * Method to obtain the position of a row among the rows of the run, the rows read from a reference index
+	 * being left out
+	 * @param node the id of a row of the run
+	 * @return int corresponding to the number of rows of the run added before it
+	 */
+	public int rowNumber(int node) {
+		if (recycling)
+			return rowNumbers[node];
+		int position = Arrays.binarySearch(referenceRows, 0, referenceCount, node);
+		return node - (position >= 0 ? position : -position - 1);
+	}
+
+	/**
+	 * @param node the id of a row
+	 * @return true if the row was read from a reference index
+	 */
+	public boolean isReference(int node) {
+		if (recycling)
+			return rowNumbers[node] < 0;
+		return Arrays.binarySearch(referenceRows, 0, referenceCount, node) >= 0;
+	}
+
+	/**
+	 * Method to add a row in a group of its own, with its sort keys for the extra passes
+	 * @param key the comparison key of the row
+	 * @param blockingKeys the sort key of the row in each extra pass
+	 * @return int corresponding to the id of the row
+	 */
+	public int add(CharSequence key, CharSequence[] blockingKeys) {
+		return add(key, null, blockingKeys);
+	}
+
+	/**
+	 * Method to add a row in a group of its own, with the values of its fields compared on their own and its sort
+	 * keys for the extra passes
+	 * @param key the comparison key of the row
+	 * @param fieldValues the value of each field compared on its own, or null if rows are compared on their keys
+	 * @param blockingKeys the sort key of the row in each extra pass, or null without extra passes
+	 * @return int corresponding to the id of the row
+	 */
+	public int add(CharSequence key, CharSequence[] fieldValues, CharSequence[] blockingKeys) {
+		int node = nextId();
+		keys.set(node, key);
+		if (fieldValues != null)
+			fields.set(node, fieldValues);
+		if (blockingKeys != null) {
+			for (int pass = 0; pass < this.blockingKeys.length; pass++)
+				this.blockingKeys[pass].set(node, blockingKeys[pass]);
+		}
+		addGroup(node, runRows++);
+		if (candidates != null && candidates.isIncremental())
+			matchCandidates(node);
+		return node;
+	}
+
+	/**
+	 * Method to run all the passes over the rows added, sorting them in memory. With a candidate index, rows were
+	 * compared as they were added, or are compared in a join pass once all of them are in, and only the extra
+	 * passes are run. With several threads, the keys are sorted forwards and backwards at the same time.
+	 */
+	public void detect() {
+		if (keys.size() == 0)
+			return;
+		if (candidates == null && threads > 1) {
+			int[][] orders = keys.sortBothWays();
+			firstPass(orders[0]);
+			mergePass(orders[1]);
+		} else if (candidates == null) {
+			firstPass(keys.sort(false));
+			mergePass(keys.sort(true));
+		} else if (!candidates.isIncremental())
+			joinPass();
+		for (int pass = 0; pass < blockingKeys.length && !stopped; pass++)
+			mergePass(blockingKeys[pass].sort(false));
+	}
+
+	/**
+	 * Method to run the first pass, over the rows sorted on their comparison keys
+	 * @param order the row ids sorted on their comparison keys
+	 */
+	public void firstPass(int[] order) {
+		if (stopped)
+			return;
+		if (threads > 1) {
+			ParallelFirstPass pass = new ParallelFirstPass(keys, fields, matchThreshold, windowSize, maxWindowSize,
+					threads, verification, verificationSample);
+			pass.setMergeRecords(mergeSimilarities, mergeRepresentatives);
+			ConcurrentUnionFind found = pass.run(order, monitor);
+			peakWindow = Math.max(peakWindow, pass.getPeakWindow());
+			pass.addCounters(kernel);
+			stopped = pass.isStopped();
+			for (int node = 0; node < order.length; node++)
+				groups.union(found.find(node), node);
+			return;
+		}
+		WindowBuffer queue = createWindow();
+		windowLimit = windowSize;
+		queue.addFirst(order[0]);
+		for (int i = 1; i < order.length && checkProgress(i, order.length); i++) {
+			matchFirstPass(order[i], queue);
+			while (evict(queue) >= 0)
+				;
+		}
+	}
+
+	/**
+	 * Method to run a pass after the first one, over rows that may already be in groups. This is the second pass,
+	 * over the rows sorted on their reversed comparison keys, and each extra pass, over the rows sorted on a
+	 * blocking key.
+	 * @param order the row ids in the order of the pass
+	 */
+	public void mergePass(int[] order) {
+		if (stopped)
+			return;
+		WindowBuffer queue = createWindow();
+		windowLimit = windowSize;
+		queue.addFirst(groups.representative(order[0]));
+		for (int i = 1; i < order.length && checkProgress(i, order.length); i++) {
+			boolean changed = false;
+			int node = order[i];
+			for (int j = queue.first(); j >= 0; j = queue.next(j)) { // The set match verification is needed in the second pass
+				int queueNode = queue.get(j);
+				if (groups.find(node) == groups.find(queueNode)) {
+					queue.set(j, groups.representative(queueNode));
+					queue.moveToFront(j);
+					changed = true;
+					break;
+				}
+			}
+			if (!changed) {
+				// The similarity is always between the comparison keys, whatever the order of the pass
+				matchWindow(node, queue);
+				for (int j = queue.first(), k = 0; j >= 0; j = queue.next(j), k++) {
+					int queueNode = queue.get(j);
+					if (!windowMatches[k])
+						continue;
+					if (canMerge(node, queueNode)) {
+						queue.set(j, groups.representative(merge(groups.representative(node), queueNode)));
+						changed = true;
+						break;
+					}
+				}
+			}
+			if (!changed)
+				queue.addFirst(groups.representative(node));
+			windowLimit = adaptWindow(windowLimit, changed, windowSize, maxWindowSize);
+			while (evict(queue) >= 0)
+				;
+		}
+	}
+
+	/**
+	 * Method to compare a row against the groups in the window of the first pass, merging it into the first
+	 * group it matches or otherwise opening a new group at the front of the window. The groups beyond the size
+	 * of the window are then removed with {@link #evict(WindowBuffer)}.
+	 * @param node the id of the row
+	 * @param queue the window of group representatives, most recent first
+	 * @return true if the row joined a group of the window
+	 */
+	public boolean matchFirstPass(int node, WindowBuffer queue) {
+		boolean changed = false;
+		matchWindow(node, queue);
+		for (int j = queue.first(), k = 0; j >= 0 && !changed; j = queue.next(j), k++) {
+			int queueNode = queue.get(j);
+			// Check that all members of the group satisfy the matching threshold to be merged
+			if (windowMatches[k] && matchesChildren(groups.representative(node), queueNode)) {
+				queue.set(j, groups.representative(merge(node, queueNode)));
+				changed = true;
+			}
+		}
+		if (!changed)
+			queue.addFirst(groups.representative(node));
+		windowLimit = adaptWindow(windowLimit, changed, windowSize, maxWindowSize);
+		return changed;
+	}
+
+	/**
+	 * Method to remove the oldest group of the window when the window holds more groups than its size
+	 * @param queue the window of group representatives, most recent first
+	 * @return int corresponding to a row of the group that left the window, or -1 if no group left it
+	 */
+	public int evict(WindowBuffer queue) {
+		if (queue.size() > windowLimit)
+			return queue.removeLast();
+		peakWindow = Math.max(peakWindow, queue.size());
+		return -1;
+	}
+
+	/**
+	 * Method to create an empty window, large enough for the largest window size and the row being matched
+	 * @return WindowBuffer to use with {@link #matchFirstPass(int, WindowBuffer)}
+	 */
+	public WindowBuffer createWindow() {
+		return new WindowBuffer(maxWindowSize + 1);
+	}
+
+	/**
+	 * Method to adapt the size of the window after a row, following the duplicate-count strategy: the window
+	 * widens by one group while rows keep joining groups, and shrinks back by one group when they do not
+	 * @param limit the current size of the window
+	 * @param matched true if the row joined a group of the window
+	 * @param windowSize the smallest size of the window
+	 * @param maxWindowSize the largest size of the window
+	 * @return int corresponding to the new size of the window
+	 */
+	static int adaptWindow(int limit, boolean matched, int windowSize, int maxWindowSize) {
+		if (matched)
+			return Math.min(maxWindowSize, limit + 1);
+		return Math.max(windowSize, limit - 1);
+	}
+
+	/**
+	 * Method to compare the rows added with the rows found by a candidate index that needs all the rows, in the
+	 * order the index chooses
+	 */
+	public void joinPass() {
+		if (stopped)
+			return;
+		int[] order = candidates.prepare(keys);
+		for (int i = 0; i < order.length && checkProgress(i, order.length); i++)
+			matchCandidates(order[i]);
+	}
+
+	/**
+	 * Method to compare a row with the rows found by the candidate index, merging the groups that match
+	 * @param node the id of the row
+	 */
+	private void matchCandidates(int node) {
+		int count = candidates.insert(keys, node);
+		for (int i = 0; i < count; i++) {
+			int candidate = candidates.getCandidate(i);
+			if (groups.find(candidate) != groups.find(node) && isMatch(node, candidate) && canMerge(node, candidate))
+				merge(node, candidate);
+		}
+	}
+
+	/**
+	 * Method to merge the groups of two rows that match. When one of them becomes the representative of the merged
+	 * group, the similarity of the other one to it is recorded, so that the output does not align them again.
+	 * @param a the id of a row
+	 * @param b the id of a row of another group, that matches the first row
+	 * @return int corresponding to the root of the merged group
+	 */
+	private int merge(int a, int b) {
+		int root = groups.union(a, b);
+		int representative = groups.representative(root);
+		if (representative == a || representative == b) {
+			int member = representative == a ? b : a;
+			// Both rows match, so their similarity was computed exactly
+			double similarity = similarityCache.peek(groups.order(a), groups.order(b));
+			if (!Double.isNaN(similarity)) {
+				mergeSimilarities[member] = similarity;
+				mergeRepresentatives[member] = representative + 1;
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Method to verify that the groups of two rows that match can be merged
+	 * @param node the id of a row
+	 * @param other the id of a row of another group, that matches the first row
+	 * @return true if the representatives match and each of them matches every member of the other group
+	 */
+	private boolean canMerge(int node, int other) {
+		// Check that all members of both groups satisfy the matching threshold to be merged
+		int representative = groups.representative(node);
+		return matchesChildren(other, representative) && isMatch(representative, other) &&
+				matchesChildren(representative, other);
+	}
+
+	/**
+	 * Method to verify that a row matches the members of a group besides its representative that the
+	 * verification policy requires, the callers verifying the representative themselves
+	 * @param node the id of the row
+	 * @param group the id of a row of the group
+	 * @return true if the similarity to each of these members is at least the matching threshold
+	 */
+	private boolean matchesChildren(int node, int group) {
+		int representative = groups.representative(group);
+		int count;
+		switch (verification) {
+		case REPRESENTATIVE:
+			return true;
+		case SAMPLE:
+			count = collectMembers(representative, 0, verificationSample - 1);
+			break;
+		case MEDOID:
+			int medoid = medoid(representative);
+			return medoid == representative || isMatch(node, medoid);
+		default:
+			count = collectMembers(representative, 0, Integer.MAX_VALUE);
+		}
+		// Members collected before a stop are not the ones the policy requires
+		return !stopped && match(node, members, count, true);
+	}
+
+	/**
+	 * Method to collect the members of a group besides its representative into members, spread evenly over the
+	 * group when there are more of them than the limit
+	 * @param representative the representative of the group
+	 * @param offset the position in members of the first member collected
+	 * @param limit the largest number of members collected
+	 * @return int corresponding to the number of members collected
+	 */
+	private int collectMembers(int representative, int offset, int limit) {
+		int others = groups.size(representative) - 1;
+		if (limit <= 0 || others == 0)
+			return 0;
+		int stride = others <= limit ? 1 : (others + limit - 1) / limit;
+		if (members.length < offset + Math.min(others, limit))
+			members = Arrays.copyOf(members, Math.max(offset + Math.min(others, limit), members.length * 2));
+		int count = 0;
+		int position = 0;
+		for (int member = groups.next(representative); member != representative && count < limit;
+				member = groups.next(member), position++) {
+			if ((position & (PROGRESS_ROWS - 1)) == 0 && checkStop())
+				break;
+			if (position % stride == 0)
+				members[offset + count++] = member;
+		}
+		return count;
+	}
+
+	/**
+	 * Method to obtain the medoid of a group, the member with the largest similarity to the other members of a
+	 * sample of the group. The medoid is cached and only chosen again once the group has doubled, so a group that
+	 * absorbs another one keeps the medoid of its representative until then.
+	 * @param representative the representative of the group
+	 * @return int corresponding to the id of the medoid
+	 */
+	private int medoid(int representative) {
+		int size = groups.size(representative);
+		// Both members of a pair are as central, and the representative is verified anyway
+		if (size <= 2)
+			return representative;
+		if (medoids.length <= representative) {
+			medoids = Arrays.copyOf(medoids, Math.max(representative + 1, medoids.length * 2));
+			medoidSizes = Arrays.copyOf(medoidSizes, medoids.length);
+		}
+		if (medoidSizes[representative] > 0 && size < 2 * medoidSizes[representative])
+			return medoids[representative];
+		int count = 1 + collectMembers(representative, 1, Math.max(2, verificationSample) - 1);
+		members[0] = representative;
+		int medoid = representative;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			double total = 0;
+			for (int j = 0; j < count; j++) {
+				if (j != i)
+					total += similarity(members[i], members[j]);
+			}
+			if (total > best) {
+				best = total;
+				medoid = members[i];
+			}
+		}
+		medoids[representative] = medoid;
+		medoidSizes[representative] = size;
+		return medoid;
+	}
+
+	/**
+	 * Method to verify if a row matches the representative of each group of a window, into windowMatches
+	 * @param node the id of the row
+	 * @param queue the window of group representatives, most recent first
+	 */
+	private void matchWindow(int node, WindowBuffer queue) {
+		int count = 0;
+		for (int j = queue.first(); j >= 0; j = queue.next(j))
+			windowRows[count++] = queue.get(j);
+		match(node, windowRows, count, false);
+	}
+
+	/**
+	 * Method to verify if a row matches each of several rows, aligning it at once against the rows whose similarity
+	 * is not cached. The result for each row is left in windowMatches when all rows are verified.
+	 * @param node the id of the row
+	 * @param others the ids of the other rows
+	 * @param count the number of other rows
+	 * @param untilMiss true to stop at the first row that does not match
+	 * @return true if the row matches all the other rows
+	 */
+	private boolean match(int node, int[] others, int count, boolean untilMiss) {
+		if (pendingRows.length < count) {
+			pendingRows = new int[Math.max(count, pendingRows.length * 2)];
+			pendingSlots = new int[pendingRows.length];
+			similarities = new double[pendingRows.length];
+		}
+		boolean matchesAll = true;
+		int pending = 0;
+		int order = groups.order(node);
+		for (int i = 0; i < count; i++) {
+			double similarity = similarityCache.get(order, groups.order(others[i]), matchThreshold);
+			if (Double.isNaN(similarity)) {
+				pendingRows[pending] = others[i];
+				pendingSlots[pending++] = i;
+			} else if (similarity >= matchThreshold) {
+				if (!untilMiss)
+					windowMatches[i] = true;
+			} else if (untilMiss)
+				return false;
+			else {
+				windowMatches[i] = false;
+				matchesAll = false;
+			}
+		}
+		// The rows of a large group are aligned in parts, checking for a stop between them
+		int computed = 0;
+		boolean missed = false;
+		while (computed < pending && !missed && ((computed & (PROGRESS_ROWS - 1)) != 0 || !checkStop())) {
+			if (fields != null) {
+				similarities[computed] = fields.similarity(kernel, node, pendingRows[computed], matchThreshold);
+				missed = untilMiss && !(similarities[computed] >= matchThreshold);
+				computed++;
+			} else {
+				computed = kernel.similarities(keys, node, pendingRows, computed, Math.min(pending, computed + PROGRESS_ROWS),
+						matchThreshold, untilMiss, similarities);
+				missed = untilMiss && !(similarities[computed - 1] >= matchThreshold);
+			}
+		}
+		for (int i = 0; i < computed; i++) {
+			boolean match = similarities[i] >= matchThreshold;
+			similarityCache.put(order, groups.order(pendingRows[i]), similarities[i], match);
+			if (!untilMiss)
+				windowMatches[pendingSlots[i]] = match;
+			matchesAll &= match;
+		}
+		// Rows left unaligned by a stop do not match
+		for (int i = computed; i < pending && !missed; i++) {
+			if (!untilMiss)
+				windowMatches[pendingSlots[i]] = false;
+			matchesAll = false;
+		}
+		return matchesAll;
+	}
+
+	/**
+	 * Method to compute the similarities between a row and several others, aligning it at once against the rows whose
+	 * similarity is not cached
+	 * @param node the id of the row
+	 * @param others the ids of the other rows
+	 * @param count the number of other rows
+	 * @param target double array receiving the similarity to each row, exact when it is at least the matching
+	 * threshold, or otherwise an upper bound of the similarity that is below the threshold
+	 */
+	public void similarities(int node, int[] others, int count, double[] target) {
+		if (pendingRows.length < count) {
+			pendingRows = new int[Math.max(count, pendingRows.length * 2)];
+			pendingSlots = new int[pendingRows.length];
+			similarities = new double[pendingRows.length];
+		}
+		int pending = 0;
+		int order = groups.order(node);
+		for (int i = 0; i < count; i++) {
+			target[i] = similarityCache.get(order, groups.order(others[i]), matchThreshold);
+			if (Double.isNaN(target[i])) {
+				pendingRows[pending] = others[i];
+				pendingSlots[pending++] = i;
+			}
+		}
+		if (fields != null) {
+			for (int i = 0; i < pending; i++)
+				similarities[i] = fields.similarity(kernel, node, pendingRows[i], matchThreshold);
+		} else
+			kernel.similarities(keys, node, pendingRows, pending, matchThreshold, false, similarities);
+		for (int i = 0; i < pending; i++) {
+			similarityCache.put(order, groups.order(pendingRows[i]), similarities[i], similarities[i] >= matchThreshold);
+			target[pendingSlots[i]] = similarities[i];
+		}
+	}
+
+	/**
+	 * Method to verify if the similarity between two rows satisfies the matching threshold
+	 * @param a the id of the first row
+	 * @param b the id of the second row
+	 * @return true if the similarity is at least the matching threshold
+	 */
+	public boolean isMatch(int a, int b) {
+		double similarity = similarityCache.get(groups.order(a), groups.order(b), matchThreshold);
+		if (Double.isNaN(similarity)) {
+			similarity = fields != null ? fields.similarity(kernel, a, b, matchThreshold)
+					: kernel.similarity(keys, a, b, matchThreshold);
+			similarityCache.put(groups.order(a), groups.order(b), similarity, similarity >= matchThreshold);
+		}
+		return similarity >= matchThreshold;
+	}
+
+	/**
+	 * Method to obtain the exact similarity between a row and the representative of its group, as recorded when
+	 * the row was merged with the representative, or otherwise computed
+	 * @param node the id of the row
+	 * @return double corresponding to the similarity, 1 for the representative itself
+	 */
+	public double representativeSimilarity(int node) {
+		int representative = groups.representative(node);
+		if (node == representative)
+			return 1;
+		if (mergeRepresentatives[node] == representative + 1)
+			return mergeSimilarities[node];
+		return similarity(representative, node);
+	}
+
+	/**
+	 * Method to obtain the exact similarity between two rows
+	 * @param a the id of the first row
+	 * @param b the id of the second row
+	 * @return double corresponding to the similarity
+	 */
+	public double similarity(int a, int b) {
+		double similarity = similarityCache.peek(groups.order(a), groups.order(b));
+		if (Double.isNaN(similarity)) {
+			similarity = fields != null ? fields.similarity(kernel, a, b, Double.NEGATIVE_INFINITY)
+					: kernel.similarity(keys, a, b, Double.NEGATIVE_INFINITY);
+			similarityCache.put(groups.order(a), groups.order(b), similarity, true);
+		}
+		return similarity;
+	}
+
+	/**
+	 * Method to release the keys and field values of a row that will not be compared anymore, along with its id
+	 * when ids are recycled
+	 * @param id the id of the row
+	 */
+	public void release(int id) {
+		keys.release(id);
+		if (fields != null)
+			fields.release(id);
+		for (int pass = 0; pass < blockingKeys.length; pass++)
+			blockingKeys[pass].release(id);
+		if (recycling) {
+			if (freeCount == freeIds.length)
+				freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+			freeIds[freeCount++] = id;
+		}
+	}
+
+	/**
+	 * Method to free the comparison keys
+	 */
+	public void close() {
+		keys.close();
+		if (fields != null)
+			fields.close();
+		for (int pass = 0; pass < blockingKeys.length; pass++)
+			blockingKeys[pass].close();
+	}
+
+	public double getMatchThreshold() {
+		return matchThreshold;
+	}
+
+	public KeyArena getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @param pass the number of the extra pass, from 0
+	 * @return the sort keys of the extra pass
+	 */
+	public KeyArena getBlockingKeys(int pass) {
+		return blockingKeys[pass];
+	}
+
+	public int getBlockingPassCount() {
+		return blockingKeys.length;
+	}
+
+	/**
+	 * @return the number of rows read from a reference index
+	 */
+	public int getReferenceCount() {
+		return referenceCount;
+	}
+
+	public UnionFind getGroups() {
+		return groups;
+	}
+
+	/**
+	 * @return the similarity of rows compared field by field, or null if rows are compared on their keys
+	 */
+	public FieldwiseSimilarity getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return the index that finds the rows to compare, or null if the first two passes are run
+	 */
+	public CandidateIndex getCandidateIndex() {
+		return candidates;
+	}
+
+	public SimilarityCache getSimilarityCache() {
+		return similarityCache;
+	}
+
+	public SimilarityKernel getKernel() {
+		return kernel;
+	}
+
+	/**
+	 * @return true if the monitor stopped the detection, whose groups are then incomplete
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * @return the largest number of groups kept in the window of a pass so far
+	 */
+	public int getPeakWindow() {
+		return peakWindow;
+	}
+
+	/**
+	 * @return true if the ids of the rows released are given to the rows added after them
+	 */
+	public boolean isRecycling() {
+		return recycling;
+	}
+
+	public VerificationPolicy getVerification() {
+		return verification;
+	}
+
+	public int getVerificationSample() {
+		return verificationSample;
+	}
+}
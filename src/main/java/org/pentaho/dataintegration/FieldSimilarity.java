@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Similarity functions of the fields compared on their own, from the cheapest to the most expensive.
+ */
+public enum FieldSimilarity {
+	NUMERIC("numeric"), // 1 - |a - b| / tolerance, at least 0, on the values read as numbers
+	EXACT("exact"), // 1 if both values are equal ignoring case, 0 otherwise
+	JARO_WINKLER("jaroWinkler"), // Jaro-Winkler similarity, suited to short fields such as names
+	NEEDLEMAN_WUNSCH("needlemanWunsch"); // Normalized edit distance, as used for the whole row
+
+	private final String code; // Name of the function in the step XML
+
+	private FieldSimilarity(String code) {
+		this.code = code;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * Method to obtain a function from its name in the step XML
+	 * @param code the name of the function
+	 * @return FieldSimilarity with that name, or NEEDLEMAN_WUNSCH if there is none
+	 */
+	public static FieldSimilarity getFromCode(String code) {
+		for (FieldSimilarity function : values()) {
+			if (function.code.equalsIgnoreCase(code))
+				return function;
+		}
+		return NEEDLEMAN_WUNSCH;
+	}
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Weighted similarity of rows compared field by field, instead of aligning their whole comparison keys.
+ *
+ * Each field has its own similarity function and weight, and the similarity of two rows is the weighted mean of
+ * the similarities of their fields. Fields are compared from the cheapest function to the most expensive one,
+ * heaviest first among equals, and the comparison stops as soon as the fields left could no longer lift the mean
+ * up to the threshold. An exact field such as a postal code thus rejects most pairs before any alignment, and
+ * the alignments that remain are banded with the lowest similarity of the field that can still reach the
+ * threshold.
+ *
+ * The values of text fields are kept in key arenas and the values of numeric fields are parsed once, by row id.
+ * Like the arenas, similarities can be computed from several threads once no more rows are added, each with the
+ * kernel of its own thread.
+ */
+public class FieldwiseSimilarity implements Closeable {
+
+	private final FieldSimilarity[] functions; // Similarity function of each field
+	private final double[] weights; // Weight of each field, divided by the sum of the weights
+	private final double[] tolerances; // Difference of two numeric values with a similarity of 0
+	private final int[] order; // Fields with a weight, in the order they are compared
+	private final double[] remaining; // Sum of the weights of the fields compared after each position of the order
+	private final KeyArena[] values; // Values of each text field, by row id
+	private final double[][] numbers; // Values of each numeric field, by row id, NaN when not a number
+	private int count; // Number of rows
+
+	/**
+	 * @param functions the similarity function of each field
+	 * @param weights the weight of each field, fields with a weight of 0 are not compared
+	 * @param tolerances the difference of two numeric values with a similarity of 0, only used by numeric fields
+	 */
+	public FieldwiseSimilarity(FieldSimilarity[] functions, double[] weights, double[] tolerances) {
+		this.functions = functions.clone();
+		this.tolerances = tolerances.clone();
+		this.weights = new double[functions.length];
+		double total = 0;
+		for (int f = 0; f < functions.length; f++)
+			total += Math.max(0, weights[f]);
+		for (int f = 0; f < functions.length; f++)
+			this.weights[f] = total > 0 ? Math.max(0, weights[f]) / total : 1.0 / functions.length;
+
+		// The constants of the function enumeration are declared from the cheapest to the most expensive
+		final FieldSimilarity[] costs = this.functions;
+		final double[] normalized = this.weights;
+		Integer[] sorted = new Integer[functions.length];
+		for (int f = 0; f < sorted.length; f++)
+			sorted[f] = f;
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cost = costs[a].compareTo(costs[b]);
+				return cost != 0 ? cost : Double.compare(normalized[b], normalized[a]);
+			}
+		});
+		int compared = 0;
+		for (int f = 0; f < sorted.length; f++) {
+			if (this.weights[sorted[f]] > 0)
+				compared++;
+		}
+		order = new int[compared];
+		for (int p = 0; p < compared; p++)
+			order[p] = sorted[p];
+		remaining = new double[compared];
+		for (int p = compared - 2; p >= 0; p--)
+			remaining[p] = remaining[p + 1] + this.weights[order[p + 1]];
+
+		values = new KeyArena[functions.length];
+		numbers = new double[functions.length][];
+		for (int f = 0; f < functions.length; f++) {
+			if (functions[f] == FieldSimilarity.NUMERIC)
+				numbers[f] = new double[1024];
+			else
+				values[f] = new KeyArena();
+		}
+	}
+
+	/**
+	 * Method to add the field values of a row after the ones already stored
+	 * @param row the value of each field, null or empty when missing
+	 * @return int corresponding to the id of the row
+	 */
+	public int add(CharSequence[] row) {
+		int id = count;
+		set(id, row);
+		return id;
+	}
+
+	/**
+	 * Method to store the field values of a row under the id of a row released, or after the ones already stored
+	 * @param id the id of the row, a released id or the number of rows
+	 * @param row the value of each field, null or empty when missing
+	 */
+	public void set(int id, CharSequence[] row) {
+		for (int f = 0; f < functions.length; f++) {
+			CharSequence value = row[f] != null ? row[f] : "";
+			if (values[f] != null)
+				values[f].set(id, value);
+			else {
+				if (id == numbers[f].length)
+					numbers[f] = Arrays.copyOf(numbers[f], id * 2);
+				numbers[f][id] = parse(value);
+			}
+		}
+		if (id == count)
+			count++;
+	}
+
+	/**
+	 * Method to compute the weighted similarity between two rows, stopping as soon as it can no longer reach the
+	 * threshold
+	 * @param kernel the similarity kernel of the calling thread
+	 * @param a the id of the first row
+	 * @param b the id of the second row
+	 * @param threshold the minimum similarity of interest
+	 * @return double with the exact similarity when it is at least the threshold, or otherwise an upper bound
+	 * of the similarity that is below the threshold
+	 */
+	public double similarity(SimilarityKernel kernel, int a, int b, double threshold) {
+		double score = 0;
+		for (int p = 0; p < order.length; p++) {
+			int f = order[p];
+			// Lowest similarity of the field that still reaches the threshold if every field left is equal
+			double needed = (threshold - score - remaining[p]) / weights[f];
+			score += weights[f] * similarity(kernel, f, a, b, needed);
+			if (score + remaining[p] < threshold)
+				return score + remaining[p];
+		}
+		return score;
+	}
+
+	/**
+	 * Method to obtain the value of a field of a row as it can be added again, numbers being written without format
+	 * @param id the id of the row
+	 * @param f the number of the field
+	 * @return String with the value, empty when missing
+	 */
+	public String getValue(int id, int f) {
+		if (values[f] != null)
+			return values[f].getString(id, false);
+		return Double.isNaN(numbers[f][id]) ? "" : String.valueOf(numbers[f][id]);
+	}
+
+	/**
+	 * Method to release the values of a row that will not be compared anymore, whose id can then be given to
+	 * another row with {@link #set(int, CharSequence[])}
+	 * @param id the id of the row
+	 */
+	public void release(int id) {
+		for (int f = 0; f < functions.length; f++) {
+			if (values[f] != null)
+				values[f].release(id);
+		}
+	}
+
+	/**
+	 * @param id the id of a row
+	 * @return the number of bytes used to store the values of the row
+	 */
+	public long byteLength(int id) {
+		long bytes = 0;
+		for (int f = 0; f < functions.length; f++)
+			bytes += values[f] != null ? values[f].byteLength(id) + 12 : 8;
+		return bytes;
+	}
+
+	/**
+	 * @return the number of bytes used to store the values of all the rows
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (int f = 0; f < functions.length; f++)
+			bytes += values[f] != null ? values[f].getBytes() : 8L * numbers[f].length;
+		return bytes;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Method to free the values of the text fields
+	 */
+	public void close() {
+		for (int f = 0; f < functions.length; f++) {
+			if (values[f] != null)
+				values[f].close();
+		}
+	}
+
+	private double similarity(SimilarityKernel kernel, int f, int a, int b, double needed) {
+		switch (functions[f]) {
+		case NUMERIC:
+			return numericSimilarity(numbers[f][a], numbers[f][b], tolerances[f]);
+		case EXACT:
+			return equalsIgnoreCase(values[f], a, b) ? 1 : 0;
+		case JARO_WINKLER:
+			return kernel.jaroWinkler(values[f], a, b);
+		default:
+			if (values[f].length(a) == 0 && values[f].length(b) == 0)
+				return 1;
+			return kernel.similarity(values[f], a, b, needed);
+		}
+	}
+
+	/**
+	 * Method to compare two numbers, two missing numbers being equal
+	 * @param a the first number, NaN when missing
+	 * @param b the second number, NaN when missing
+	 * @param tolerance the difference with a similarity of 0, 0 or less to only accept equal numbers
+	 * @return double between 0 and 1
+	 */
+	static double numericSimilarity(double a, double b, double tolerance) {
+		if (Double.isNaN(a) || Double.isNaN(b))
+			return Double.isNaN(a) && Double.isNaN(b) ? 1 : 0;
+		if (tolerance <= 0)
+			return a == b ? 1 : 0;
+		return Math.max(0, 1 - Math.abs(a - b) / tolerance);
+	}
+
+	private static boolean equalsIgnoreCase(KeyArena keys, int a, int b) {
+		int length = keys.length(a);
+		if (length != keys.length(b))
+			return false;
+		for (int i = 0; i < length; i++) {
+			char x = keys.charAt(a, i);
+			char y = keys.charAt(b, i);
+			if (x != y && Character.toLowerCase(x) != Character.toLowerCase(y))
+				return false;
+		}
+		return true;
+	}
+
+	private static double parse(CharSequence value) {
+		try {
+			return Double.parseDouble(value.toString().trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,502 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Comparison keys of the rows, stored outside of the heap by row id.
+ *
+ * Keys are appended to large direct buffers, one byte per character when every character of the key fits in
+ * Latin-1 and two bytes per character otherwise, and located through an offset and length index. Keys are read
+ * forwards or backwards in place, so the reversed keys of the second pass are never materialized, and the heap
+ * only holds the index instead of two String objects per row.
+ *
+ * Reads only use absolute positions, so several threads can read the keys at the same time once no more keys
+ * are added.
+ *
+ * Keys are sorted with a most significant digit radix sort on prefixes of 4 characters packed in a long: the
+ * ids are ordered on their first prefix with a least significant byte radix sort of the packed values, then
+ * each run of ids sharing a prefix is ordered on the next one, and small runs fall back to a merge sort of the
+ * keys. Most comparisons of the merge sort thus become byte moves over arrays, instead of reads of characters
+ * scattered in the buffers.
+ */
+public class KeyArena implements Closeable {
+
+	private static final int CHUNK_SIZE = 16 * 1024 * 1024; // Size of the direct buffers holding the keys
+	private static final int INSERTION_SORT_SIZE = 16; // Ranges sorted by insertion in the merge sort
+	private static final int RADIX_SORT_SIZE = 256; // Smallest range sorted with the radix sort rather than merged
+	private static final int PREFIX_CHARS = 4; // Characters packed in the prefix of a key, 16 bits each
+	private static final long PROGRESS_NANOS = 100000000L; // Time between two calls to the monitor of a sort
+	private static final int PROGRESS_IDS = 64 * 1024; // Ids of a range sorted between two checks for a stop
+
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>(); // Buffers, null once released
+	private int[] liveKeys = new int[16]; // Number of keys not released, by buffer
+	private ByteBuffer current; // Buffer where keys are appended
+	private long[] offsets = new long[1024]; // Buffer number in the high half and position in the low half, by id
+	private int[] lengths = new int[1024]; // Number of characters times 2, plus 1 for two bytes per character
+	private int count; // Number of keys
+	private long bytes; // Number of bytes of the allocated buffers
+
+	/**
+	 * Method to add a key after the ones already stored
+	 * @param key the comparison key
+	 * @return int corresponding to the id of the key
+	 */
+	public int add(CharSequence key) {
+		int id = count;
+		set(id, key);
+		return id;
+	}
+
+	/**
+	 * Method to store a key under the id of a key released, or after the ones already stored
+	 * @param id the id of the key, a released id or the number of keys
+	 * @param key the comparison key
+	 */
+	public void set(int id, CharSequence key) {
+		int length = key.length();
+		boolean wide = false;
+		for (int i = 0; i < length && !wide; i++)
+			wide = key.charAt(i) > 0xFF;
+		int size = wide ? 2 * length : length;
+		if (current == null || current.remaining() < size) {
+			if (current != null && liveKeys[chunks.size() - 1] == 0) {
+				bytes -= current.capacity();
+				chunks.set(chunks.size() - 1, null);
+			}
+			current = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size));
+			chunks.add(current);
+			if (chunks.size() > liveKeys.length)
+				liveKeys = Arrays.copyOf(liveKeys, liveKeys.length * 2);
+			bytes += current.capacity();
+		}
+		if (id == count) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				lengths = Arrays.copyOf(lengths, count * 2);
+			}
+			count++;
+		}
+		int chunk = chunks.size() - 1;
+		offsets[id] = (long) chunk << 32 | current.position();
+		lengths[id] = length << 1 | (wide ? 1 : 0);
+		if (wide) {
+			for (int i = 0; i < length; i++)
+				current.putChar(key.charAt(i));
+		} else {
+			for (int i = 0; i < length; i++)
+				current.put((byte) key.charAt(i));
+		}
+		liveKeys[chunk]++;
+	}
+
+	/**
+	 * @param id the id of the key
+	 * @return the number of characters of the key
+	 */
+	public int length(int id) {
+		return lengths[id] >>> 1;
+	}
+
+	/**
+	 * @param id the id of the key
+	 * @return the number of bytes used to store the key
+	 */
+	public int byteLength(int id) {
+		return (lengths[id] & 1) == 1 ? lengths[id] - 1 : lengths[id] >>> 1;
+	}
+
+	/**
+	 * Method to obtain a character of a key
+	 * @param id the id of the key
+	 * @param i the position of the character
+	 * @return char at the position
+	 */
+	public char charAt(int id, int i) {
+		ByteBuffer chunk = chunks.get((int) (offsets[id] >>> 32));
+		int position = (int) offsets[id];
+		if ((lengths[id] & 1) == 1)
+			return chunk.getChar(position + 2 * i);
+		return (char) (chunk.get(position + i) & 0xFF);
+	}
+
+	/**
+	 * Method to copy the characters of a key
+	 * @param id the id of the key
+	 * @param target array with room for at least the length of the key
+	 */
+	public void getChars(int id, char[] target) {
+		ByteBuffer chunk = chunks.get((int) (offsets[id] >>> 32));
+		int position = (int) offsets[id];
+		int length = lengths[id] >>> 1;
+		if ((lengths[id] & 1) == 1) {
+			for (int i = 0; i < length; i++)
+				target[i] = chunk.getChar(position + 2 * i);
+		} else {
+			for (int i = 0; i < length; i++)
+				target[i] = (char) (chunk.get(position + i) & 0xFF);
+		}
+	}
+
+	/**
+	 * Method to obtain a key as a String
+	 * @param id the id of the key
+	 * @param reversed true to obtain the characters in reverse order
+	 * @return String with the key
+	 */
+	public String getString(int id, boolean reversed) {
+		char[] chars = new char[length(id)];
+		getChars(id, chars);
+		if (reversed) {
+			for (int i = 0, j = chars.length - 1; i < j; i++, j--) {
+				char swap = chars[i];
+				chars[i] = chars[j];
+				chars[j] = swap;
+			}
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Method to compare two keys in the lexicographic order of String.compareTo
+	 * @param a the id of the first key
+	 * @param b the id of the second key
+	 * @param reversed true to compare the keys read from their last character
+	 * @return int negative, zero or positive as the first key is before, equal or after the second one
+	 */
+	public int compare(int a, int b, boolean reversed) {
+		return compare(a, b, reversed, 0);
+	}
+
+	/**
+	 * Method to compare two keys known to be equal up to a position, in the lexicographic order of String.compareTo
+	 * @param a the id of the first key
+	 * @param b the id of the second key
+	 * @param reversed true to compare the keys read from their last character
+	 * @param from the number of leading characters, or trailing ones when reversed, equal in both keys
+	 * @return int negative, zero or positive as the first key is before, equal or after the second one
+	 */
+	private int compare(int a, int b, boolean reversed, int from) {
+		int aLength = length(a);
+		int bLength = length(b);
+		int length = Math.min(aLength, bLength);
+		for (int i = from; i < length; i++) {
+			char x = reversed ? charAt(a, aLength - 1 - i) : charAt(a, i);
+			char y = reversed ? charAt(b, bLength - 1 - i) : charAt(b, i);
+			if (x != y)
+				return x - y;
+		}
+		return aLength - bLength;
+	}
+
+	/**
+	 * Method to sort the ids of all the keys. The sort is stable, so equal keys keep the order of their ids.
+	 * @param reversed true to sort on the keys read from their last character
+	 * @return int array with the ids in key order
+	 */
+	public int[] sort(boolean reversed) {
+		return sort(reversed, null);
+	}
+
+	/**
+	 * Method to sort the ids of all the keys, calling a monitor every fraction of a second, which can stop the sort
+	 * @param reversed true to sort on the keys read from their last character
+	 * @param monitor the monitor, called with no row processed yet, or null for none
+	 * @return int array with the ids in key order, or only partly sorted if the monitor stopped the sort
+	 */
+	public int[] sort(boolean reversed, PassMonitor monitor) {
+		return sortIds(reversed, new SortStop(monitor, count));
+	}
+
+	private int[] sortIds(boolean reversed, SortStop stop) {
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++)
+			ids[i] = i;
+		radixSort(ids, new int[count], new long[count], new long[count], new int[8 * 256], 0, count, 0, reversed, stop);
+		return ids;
+	}
+
+	/**
+	 * Method to sort the ids of all the keys read forwards and backwards at the same time, the reversed keys on
+	 * another thread. Both sorts only read the keys, so no more keys may be added meanwhile.
+	 * @return int arrays with the ids in key order and in reversed key order
+	 */
+	public int[][] sortBothWays() {
+		return sortBothWays(null);
+	}
+
+	/**
+	 * Method to sort the ids of all the keys read forwards and backwards at the same time, calling a monitor from
+	 * the calling thread every fraction of a second, which can stop both sorts
+	 * @param monitor the monitor, called with no row processed yet, or null for none
+	 * @return int arrays with the ids in key order and in reversed key order, only partly sorted if the monitor
+	 * stopped the sorts
+	 */
+	public int[][] sortBothWays(PassMonitor monitor) {
+		final int[][] orders = new int[2][];
+		SortStop stop = new SortStop(monitor, count);
+		// The other thread cannot call the monitor, this one passes the stop on
+		final SortStop reversedStop = new SortStop(null, count);
+		Thread reversedSort = new Thread(new Runnable() {
+			public void run() {
+				orders[1] = sortIds(true, reversedStop);
+			}
+		}, "Reversed key sort");
+		reversedSort.setDaemon(true);
+		reversedSort.start();
+		orders[0] = sortIds(false, stop);
+		boolean interrupted = false;
+		while (reversedSort.isAlive()) {
+			if (stop.isStopped())
+				reversedStop.stopped = true;
+			try {
+				reversedSort.join(PROGRESS_NANOS / 1000000);
+			} catch (InterruptedException e) {
+				// The sort is short, the interruption is passed on once it is done
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		// Sorts again on this thread if the other one failed, running out of memory for instance
+		if (orders[1] == null)
+			orders[1] = sortIds(true, stop);
+		return orders;
+	}
+
+	/**
+	 * Method to release a key that will not be read anymore. The buffer holding it is freed once all of its
+	 * keys were released, and its id can be given to another key with {@link #set(int, CharSequence)}.
+	 * @param id the id of the key
+	 */
+	public void release(int id) {
+		int chunk = (int) (offsets[id] >>> 32);
+		if (--liveKeys[chunk] == 0 && chunks.get(chunk) != current) {
+			bytes -= chunks.get(chunk).capacity();
+			chunks.set(chunk, null);
+		}
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes of the buffers holding the keys
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Method to drop the buffers, which are freed with their last reference
+	 */
+	public void close() {
+		chunks.clear();
+		current = null;
+		bytes = 0;
+	}
+
+	/**
+	 * Method to sort a range of ids whose keys are equal up to a position, keeping equal keys in the order of their
+	 * ids, which is the order of the range
+	 * @param ids the ids to sort
+	 * @param work array as long as ids, used as scratch
+	 * @param prefixes array as long as ids, receiving the prefix of each id of the range
+	 * @param prefixWork array as long as ids, used as scratch
+	 * @param counts array of 8 * 256 counts, used as scratch
+	 * @param from the start of the range
+	 * @param to the end of the range, excluded
+	 * @param offset the number of characters equal in all keys of the range
+	 * @param reversed true to sort on the keys read from their last character
+	 * @param stop the stop of the sort, checked along the passes over the range and between its runs, when the
+	 * ids of the range are always all in ids
+	 */
+	private void radixSort(int[] ids, int[] work, long[] prefixes, long[] prefixWork, int[] counts, int from, int to,
+			int offset, boolean reversed, SortStop stop) {
+		if (to - from < RADIX_SORT_SIZE) {
+			System.arraycopy(ids, from, work, from, to - from);
+			mergeSort(ids, work, from, to, reversed, offset);
+			return;
+		}
+		Arrays.fill(counts, 0);
+		for (int i = from; i < to; i++) {
+			if (((i - from) & (PROGRESS_IDS - 1)) == 0 && stop.isStopped())
+				return;
+			long prefix = prefix(ids[i], offset, reversed);
+			prefixes[i] = prefix;
+			for (int digit = 0; digit < 8; digit++)
+				counts[digit << 8 | (int) (prefix >>> (digit << 3)) & 0xFF]++;
+		}
+		// Least significant byte first, each pass is stable, and bytes equal in all prefixes are skipped
+		int[] sourceIds = ids;
+		int[] targetIds = work;
+		long[] source = prefixes;
+		long[] target = prefixWork;
+		for (int digit = 0; digit < 8; digit++) {
+			int shift = digit << 3;
+			int base = digit << 8;
+			if (counts[base | (int) (prefixes[from] >>> shift) & 0xFF] == to - from)
+				continue;
+			if (stop.isStopped())
+				return;
+			int position = from;
+			for (int b = 0; b < 256; b++) {
+				int c = counts[base | b];
+				counts[base | b] = position;
+				position += c;
+			}
+			for (int i = from; i < to; i++) {
+				int slot = counts[base | (int) (source[i] >>> shift) & 0xFF]++;
+				target[slot] = source[i];
+				targetIds[slot] = sourceIds[i];
+			}
+			int[] swapIds = sourceIds;
+			sourceIds = targetIds;
+			targetIds = swapIds;
+			long[] swap = source;
+			source = target;
+			target = swap;
+		}
+		if (sourceIds != ids) {
+			System.arraycopy(sourceIds, from, ids, from, to - from);
+			System.arraycopy(source, from, prefixes, from, to - from);
+		}
+		// Runs sharing a prefix: keys ending within it come first, shorter ones before, then the others are sorted
+		// on their next prefix. A run is done before the next one is read, so the arrays can be reused.
+		int next = offset + PREFIX_CHARS;
+		int checked = from; // Start of the runs since the last check for a stop
+		for (int start = from; start < to; ) {
+			if (start - checked >= PROGRESS_IDS) {
+				checked = start;
+				if (stop.isStopped())
+					return;
+			}
+			int end = start + 1;
+			while (end < to && prefixes[end] == prefixes[start])
+				end++;
+			if (end - start > 1) {
+				int ended = start;
+				int continued = 0;
+				for (int i = start; i < end; i++) {
+					if (length(ids[i]) <= next)
+						ids[ended++] = ids[i];
+					else
+						work[start + continued++] = ids[i];
+				}
+				System.arraycopy(work, start, ids, ended, continued);
+				for (int i = start + 1; i < ended; i++) {
+					int id = ids[i];
+					int j = i - 1;
+					for (; j >= start && length(ids[j]) > length(id); j--)
+						ids[j + 1] = ids[j];
+					ids[j + 1] = id;
+				}
+				if (continued > 1)
+					radixSort(ids, work, prefixes, prefixWork, counts, ended, end, next, reversed, stop);
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Method to pack 4 characters of a key in a long that orders as the characters do, padded with zeros
+	 * @param id the id of the key
+	 * @param offset the position of the first character, counted from the end when reversed
+	 * @param reversed true to read the key from its last character
+	 * @return long with the characters, 16 bits each from the most significant ones
+	 */
+	private long prefix(int id, int offset, boolean reversed) {
+		ByteBuffer chunk = chunks.get((int) (offsets[id] >>> 32));
+		int position = (int) offsets[id];
+		int length = lengths[id] >>> 1;
+		boolean wide = (lengths[id] & 1) == 1;
+		long prefix = 0;
+		for (int i = offset; i < offset + PREFIX_CHARS; i++) {
+			int c = 0;
+			if (i < length) {
+				int index = reversed ? length - 1 - i : i;
+				c = wide ? chunk.getChar(position + 2 * index) : chunk.get(position + index) & 0xFF;
+			}
+			prefix = prefix << 16 | c;
+		}
+		return prefix;
+	}
+
+	private void mergeSort(int[] ids, int[] work, int from, int to, boolean reversed, int offset) {
+		if (to - from <= INSERTION_SORT_SIZE) {
+			for (int i = from + 1; i < to; i++) {
+				int id = ids[i];
+				int j = i - 1;
+				for (; j >= from && compare(ids[j], id, reversed, offset) > 0; j--)
+					ids[j + 1] = ids[j];
+				ids[j + 1] = id;
+			}
+			return;
+		}
+		// Both halves are sorted into the work array, then merged back
+		int middle = (from + to) >>> 1;
+		mergeSort(work, ids, from, middle, reversed, offset);
+		mergeSort(work, ids, middle, to, reversed, offset);
+		if (compare(work[middle - 1], work[middle], reversed, offset) <= 0) {
+			System.arraycopy(work, from, ids, from, to - from);
+			return;
+		}
+		for (int i = from, p = from, q = middle; i < to; i++) {
+			if (q >= to || (p < middle && compare(work[p], work[q], reversed, offset) <= 0))
+				ids[i] = work[p++];
+			else
+				ids[i] = work[q++];
+		}
+	}
+
+	/**
+	 * Stop of a sort. The thread owning the monitor calls it every fraction of a second, and a sort without monitor
+	 * only stops when another thread tells it to.
+	 */
+	private static class SortStop {
+		private final PassMonitor monitor; // Null when another thread stops the sort
+		private final int total; // Number of keys sorted, reported to the monitor
+		private volatile boolean stopped;
+		private long nextProgress = System.nanoTime(); // Time from which the monitor is called again
+
+		SortStop(PassMonitor monitor, int total) {
+			this.monitor = monitor;
+			this.total = total;
+		}
+
+		boolean isStopped() {
+			if (monitor != null && !stopped) {
+				long now = System.nanoTime();
+				if (now - nextProgress >= 0) {
+					nextProgress = now + PROGRESS_NANOS;
+					stopped = !monitor.progress(0, total);
+				}
+			}
+			return stopped;
+		}
+	}
+}
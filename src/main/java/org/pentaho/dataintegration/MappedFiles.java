@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Release of the files mapped in memory by the spill file and the reference index.
+ *
+ * A mapping otherwise lasts until its buffer is collected, which keeps the address space and the pages of a large
+ * file mapped long after the step is done with it, and prevents replacing or deleting the file on Windows.
+ */
+public final class MappedFiles {
+
+	private MappedFiles() {
+	}
+
+	/**
+	 * Method to release the mapping of the segments of a file right away rather than when they are collected.
+	 * The segments must not be read afterwards, so their owner drops them first.
+	 * @param segments the mapped segments, or null for none
+	 */
+	public static void unmap(MappedByteBuffer[] segments) {
+		if (segments == null)
+			return;
+		for (int s = 0; s < segments.length; s++) {
+			try {
+				try {
+					// Java 9 and later
+					Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+					Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+					Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+					theUnsafe.setAccessible(true);
+					invokeCleaner.invoke(theUnsafe.get(null), segments[s]);
+				} catch (NoSuchMethodException e) {
+					// Java 7 and 8
+					Method cleanerMethod = segments[s].getClass().getMethod("cleaner");
+					cleanerMethod.setAccessible(true);
+					Object cleaner = cleanerMethod.invoke(segments[s]);
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception e) {
+				// The mapping is then released once the segment is collected
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.Arrays;
+
+/**
+ * Locality-sensitive hashing index of the comparison keys, used to find the rows worth comparing without sorting.
+ *
+ * The MinHash signature of a key holds, for each of bands * rowsPerBand hash functions, the smallest hash of the
+ * q-grams of the lower case key, so that two keys agree on a hash with a probability equal to the Jaccard
+ * similarity of their q-gram sets. The signature is cut into bands, and two rows are candidates when all the
+ * hashes of some band are equal, which happens with a probability of 1 - (1 - s^rowsPerBand)^bands for a
+ * Jaccard similarity s. More bands find more duplicates, and more rows per band make the buckets more selective.
+ *
+ * Rows are inserted one at a time and each insertion returns the rows already inserted that share a bucket with
+ * it. Buckets are chains of row ids through a single open addressing table keyed by band and band hash, and only
+ * the most recent rows of a bucket are returned, so that a large bucket of equal keys stays linear.
+ */
+public class MinHashIndex implements CandidateIndex {
+
+	private static final long SEED = 0x5DEECE66DL; // Seed of the hash functions, fixed so that results are reproducible
+	private static final int MAX_BUCKET_SCAN = 64; // Largest number of rows of a bucket returned per insertion
+	private static final int NONE = -1;
+
+	private final int qGramSize;
+	private final int bands;
+	private final int rowsPerBand;
+	private final long[] seeds; // Seed of each hash function of the signature
+	private final int[] signature; // Signature of the row being inserted
+	private char[] buffer = new char[64]; // Lower case copy of the key being inserted
+	private long[] bucketKeys; // Band and band hash of each bucket, 0 when unused
+	private int[] bucketHeads; // Most recent row of each bucket
+	private int buckets; // Number of buckets used
+	private int[] next = new int[1024]; // Previous row of the same bucket, by row id times bands plus band
+	private int[] stamps = new int[1024]; // Last row whose candidates included each row, plus 1
+	private int[] candidates = new int[64]; // Candidates of the row being inserted
+	private int candidateCount;
+	private long collisions; // Number of candidates returned
+
+	/**
+	 * @param qGramSize the number of characters of the q-grams
+	 * @param bands the number of bands of the signature
+	 * @param rowsPerBand the number of hashes of each band
+	 */
+	public MinHashIndex(int qGramSize, int bands, int rowsPerBand) {
+		this.qGramSize = Math.max(1, qGramSize);
+		this.bands = Math.max(1, bands);
+		this.rowsPerBand = Math.max(1, rowsPerBand);
+		seeds = new long[this.bands * this.rowsPerBand];
+		long seed = SEED;
+		for (int i = 0; i < seeds.length; i++) {
+			seed += 0x9E3779B97F4A7C15L;
+			seeds[i] = mix(seed);
+		}
+		signature = new int[seeds.length];
+		bucketKeys = new long[1024];
+		bucketHeads = new int[1024];
+	}
+
+	public boolean isIncremental() {
+		return true;
+	}
+
+	public int[] prepare(KeyArena keys) {
+		return null;
+	}
+
+	/**
+	 * Method to insert a row and collect the rows already inserted that share a bucket with it, most recent first
+	 * in each band and without repetitions
+	 */
+	public int insert(KeyArena keys, int id) {
+		computeSignature(keys, id);
+		if ((id + 1) * bands > next.length)
+			next = Arrays.copyOf(next, Math.max((id + 1) * bands, next.length * 2));
+		if (id >= stamps.length)
+			stamps = Arrays.copyOf(stamps, Math.max(id + 1, stamps.length * 2));
+		candidateCount = 0;
+		for (int band = 0; band < bands; band++) {
+			long key = bandKey(band);
+			int bucket = findBucket(key);
+			int row = bucketKeys[bucket] == key ? bucketHeads[bucket] : NONE;
+			for (int scanned = 0; row != NONE && scanned < MAX_BUCKET_SCAN; scanned++) {
+				if (stamps[row] != id + 1) {
+					stamps[row] = id + 1;
+					addCandidate(row);
+				}
+				row = next[row * bands + band];
+			}
+			if (bucketKeys[bucket] != key) {
+				bucketKeys[bucket] = key;
+				bucketHeads[bucket] = NONE;
+				if (++buckets * 2 > bucketKeys.length)
+					bucket = grow(key);
+			}
+			next[id * bands + band] = bucketHeads[bucket];
+			bucketHeads[bucket] = id;
+		}
+		collisions += candidateCount;
+		return candidateCount;
+	}
+
+	/**
+	 * Method to compute the hash of each band of the signature of a row, without inserting it
+	 * @param keys the arena holding the comparison keys
+	 * @param id the id of the row
+	 * @param target long array receiving the hash of each band, never 0
+	 */
+	public void bandKeys(KeyArena keys, int id, long[] target) {
+		computeSignature(keys, id);
+		for (int band = 0; band < bands; band++)
+			target[band] = bandKey(band);
+	}
+
+	public int getCandidate(int i) {
+		return candidates[i];
+	}
+
+	public int bytesPerRow() {
+		// Bucket chains, candidate stamps and, at worst, one bucket per band at a load of one half
+		return 4 * bands + 4 + 2 * 12 * bands;
+	}
+
+	public long getCollisions() {
+		return collisions;
+	}
+
+	public int getBands() {
+		return bands;
+	}
+
+	/**
+	 * Method to compute the signature of a key into the signature buffer. Keys shorter than the q-grams are
+	 * hashed as a single q-gram.
+	 */
+	private void computeSignature(KeyArena keys, int id) {
+		buffer = SimilarityKernel.load(keys, id, buffer);
+		int length = keys.length(id);
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		int grams = Math.max(1, length - qGramSize + 1);
+		for (int start = 0; start < grams; start++) {
+			int gram = 0;
+			for (int i = start; i < Math.min(length, start + qGramSize); i++)
+				gram = 31 * gram + buffer[i];
+			for (int h = 0; h < seeds.length; h++) {
+				int hash = (int) (mix(gram ^ seeds[h]) >>> 32);
+				if (hash < signature[h])
+					signature[h] = hash;
+			}
+		}
+	}
+
+	private long bandKey(int band) {
+		long key = band;
+		for (int r = band * rowsPerBand; r < (band + 1) * rowsPerBand; r++)
+			key = key * 0x100000001B3L + signature[r];
+		key = mix(key);
+		return key != 0 ? key : 1; // 0 marks the unused buckets
+	}
+
+	private int findBucket(long key) {
+		int mask = bucketKeys.length - 1;
+		int bucket = (int) key & mask;
+		while (bucketKeys[bucket] != 0 && bucketKeys[bucket] != key)
+			bucket = (bucket + 1) & mask;
+		return bucket;
+	}
+
+	/**
+	 * Method to double the bucket table
+	 * @param key the key of a bucket
+	 * @return int corresponding to the new position of that bucket
+	 */
+	private int grow(long key) {
+		long[] oldKeys = bucketKeys;
+		int[] oldHeads = bucketHeads;
+		bucketKeys = new long[oldKeys.length * 2];
+		bucketHeads = new int[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int bucket = findBucket(oldKeys[i]);
+				bucketKeys[bucket] = oldKeys[i];
+				bucketHeads[bucket] = oldHeads[i];
+			}
+		}
+		return findBucket(key);
+	}
+
+	private void addCandidate(int row) {
+		if (candidateCount == candidates.length)
+			candidates = Arrays.copyOf(candidates, candidateCount * 2);
+		candidates[candidateCount++] = row;
+	}
+
+	private static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+		x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+		return x ^ (x >>> 31);
+	}
+}
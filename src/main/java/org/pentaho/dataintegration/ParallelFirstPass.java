@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * First pass of the sorted neighbourhood method, run over contiguous ranges of the sorted rows in parallel.
+ *
+ * Each range runs the sliding window of the sequential pass on its own, starting with a warm-up of the rows
+ * before the range as long as the window, so that rows at the start of a range can still be merged with groups
+ * of the previous range. Merges are recorded in a {@link ConcurrentUnionFind}, which reconciles the groups that
+ * cross range boundaries. The ranges only depend on the number of threads, so a given thread count always
+ * produces the same groups, and a single thread produces the groups of the sequential pass. Rows are verified
+ * against the members of a group that the {@link VerificationPolicy} requires, as in the sequential pass, though
+ * the groups of a range do not see the members that other ranges add to them.
+ */
+public class ParallelFirstPass {
+
+	private static final int PROGRESS_ROWS = 1024; // Rows counted at once, members aligned between stop checks
+	private static final long PROGRESS_MILLIS = 250; // Time between two calls to the monitor
+
+	private final KeyArena keys; // Comparison keys of the rows, by row id
+	private final FieldwiseSimilarity fields; // Similarity of rows compared field by field, null to compare their keys
+	private final double matchThreshold;
+	private final int windowSize;
+	private final int maxWindowSize;
+	private final int threads;
+	private final VerificationPolicy verification; // Members of a group a row must match to join it
+	private final int verificationSample; // Number of members verified, or sampled for the medoid, of each group
+	private int peakWindow; // Largest number of groups kept in the window of a range
+	private final AtomicInteger processed = new AtomicInteger(); // Rows of the ranges processed so far
+	private final AtomicLong alignments = new AtomicLong(); // Counters of the kernels of the ranges, added as they end
+	private final AtomicLong lengthPrunes = new AtomicLong();
+	private final AtomicLong countPrunes = new AtomicLong();
+	private final AtomicLong earlyExits = new AtomicLong();
+	private volatile boolean stopped; // Whether the monitor stopped the pass, which the ranges check before each row
+	private double[] mergeSimilarities; // Similarity of each row to the representative it joined, null to not record it
+	private int[] mergeRepresentatives; // That representative plus one, by row id
+
+	/**
+	 * @param keys the comparison keys of the rows, by row id
+	 * @param fields the similarity of rows compared field by field, or null to compare their comparison keys
+	 * @param matchThreshold the matching threshold value
+	 * @param windowSize the number of groups in the window
+	 * @param maxWindowSize the largest number of groups in the window, larger than windowSize for an adaptive window
+	 * @param threads the number of ranges run in parallel
+	 * @param verification the members of a group a row must match to join it
+	 * @param verificationSample the number of members verified, or sampled for the medoid, of each group
+	 */
+	public ParallelFirstPass(KeyArena keys, FieldwiseSimilarity fields, double matchThreshold, int windowSize,
+			int maxWindowSize, int threads, VerificationPolicy verification, int verificationSample) {
+		this.keys = keys;
+		this.fields = fields;
+		this.matchThreshold = matchThreshold;
+		this.windowSize = windowSize;
+		this.maxWindowSize = maxWindowSize;
+		this.threads = threads;
+		this.verification = verification;
+		this.verificationSample = Math.max(1, verificationSample);
+	}
+
+	/**
+	 * Method to record the similarity of each row to the representative of the group it joins, when that
+	 * representative stays the representative. Each row is recorded by the range it belongs to only.
+	 * @param mergeSimilarities double array receiving the similarity, by row id
+	 * @param mergeRepresentatives int array receiving the representative plus one, by row id
+	 */
+	public void setMergeRecords(double[] mergeSimilarities, int[] mergeRepresentatives) {
+		this.mergeSimilarities = mergeSimilarities;
+		this.mergeRepresentatives = mergeRepresentatives;
+	}
+
+	/**
+	 * Method to run the first pass
+	 * @param order the row ids in the order of the pass
+	 * @return ConcurrentUnionFind with the groups found, by row id
+	 */
+	public ConcurrentUnionFind run(int[] order) {
+		return run(order, null);
+	}
+
+	/**
+	 * Method to run the first pass, reporting its progress to a monitor from the calling thread while the ranges run
+	 * @param order the row ids in the order of the pass
+	 * @param monitor the monitor, or null for none
+	 * @return ConcurrentUnionFind with the groups found, by row id, which are incomplete if the monitor stopped the pass
+	 */
+	public ConcurrentUnionFind run(int[] order, PassMonitor monitor) {
+		ConcurrentUnionFind groups = new ConcurrentUnionFind(keys.size());
+		List<RangeTask> tasks = new ArrayList<RangeTask>(threads);
+		for (int t = 0; t < threads; t++) {
+			int start = (int) ((long) order.length * t / threads);
+			int end = (int) ((long) order.length * (t + 1) / threads);
+			if (start < end)
+				tasks.add(new RangeTask(order, Math.max(0, start - maxWindowSize), start, end, groups));
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			for (RangeTask task : tasks)
+				pool.execute(task);
+			// The submitted ranges still run to the end, or until they see the stop
+			pool.shutdown();
+			while (!pool.awaitTermination(PROGRESS_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (monitor != null && !stopped && !monitor.progress(processed.get(), order.length))
+					stopped = true;
+			}
+			for (RangeTask task : tasks) {
+				task.join();
+				peakWindow = Math.max(peakWindow, task.peakWindow);
+			}
+		} catch (InterruptedException e) {
+			stopped = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdown();
+		}
+		return groups;
+	}
+
+	/**
+	 * Method to verify if a row matches the members of a group that the verification policy requires, aligning it
+	 * at once against all of them
+	 * @param kernel the kernel of the calling thread
+	 * @param index the id of the row
+	 * @param group the group
+	 * @param verified int array large enough for the members of the group, to hold the members verified
+	 * @param similarities double array large enough for the members of the group, receiving the similarity to
+	 * each member verified, the representative first
+	 * @return true if the similarity to each of these members is at least the matching threshold
+	 */
+	private boolean matchesAll(SimilarityKernel kernel, int index, Group group, int[] verified, double[] similarities) {
+		int[] rows = verified;
+		int count = 1;
+		verified[0] = group.members[0];
+		switch (verification) {
+		case REPRESENTATIVE:
+			break;
+		case SAMPLE:
+			count += spread(group, 1, verificationSample - 1, verified);
+			break;
+		case MEDOID:
+			int medoid = medoid(kernel, group, verified);
+			verified[0] = group.members[0];
+			if (medoid != group.members[0])
+				verified[count++] = medoid;
+			break;
+		default:
+			rows = group.members;
+			count = group.size;
+		}
+		// The members of a large group are aligned in parts, checking for a stop between them
+		for (int from = 0; from < count; from += PROGRESS_ROWS) {
+			if (stopped)
+				return false;
+			int to = Math.min(count, from + PROGRESS_ROWS);
+			if (fields != null) {
+				for (int k = from; k < to; k++) {
+					similarities[k] = fields.similarity(kernel, index, rows[k], matchThreshold);
+					if (!(similarities[k] >= matchThreshold))
+						return false;
+				}
+			} else {
+				int computed = kernel.similarities(keys, index, rows, from, to, matchThreshold, true, similarities);
+				if (computed < to || !(similarities[computed - 1] >= matchThreshold))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Method to copy the members of a group besides its representative, spread evenly over the group when there
+	 * are more of them than the limit
+	 * @param group the group
+	 * @param offset the position in rows of the first member copied
+	 * @param limit the largest number of members copied
+	 * @param rows int array receiving the members
+	 * @return int corresponding to the number of members copied
+	 */
+	private static int spread(Group group, int offset, int limit, int[] rows) {
+		int others = group.size - 1;
+		if (limit <= 0 || others == 0)
+			return 0;
+		int stride = others <= limit ? 1 : (others + limit - 1) / limit;
+		int count = 0;
+		for (int position = 0; position < others && count < limit; position += stride)
+			rows[offset + count++] = group.members[1 + position];
+		return count;
+	}
+
+	/**
+	 * Method to obtain the medoid of a group, the member with the largest similarity to the other members of a
+	 * sample of the group, chosen again once the group has doubled
+	 * @param kernel the kernel of the calling thread
+	 * @param group the group
+	 * @param rows int array large enough for the members of the group, to hold the sample
+	 * @return int corresponding to the id of the medoid
+	 */
+	private int medoid(SimilarityKernel kernel, Group group, int[] rows) {
+		// Both members of a pair are as central, and the representative is verified anyway
+		if (group.size <= 2)
+			return group.members[0];
+		if (group.size < 2 * group.medoidSize)
+			return group.medoid;
+		rows[0] = group.members[0];
+		int count = 1 + spread(group, 1, Math.max(2, verificationSample) - 1, rows);
+		double best = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			double total = 0;
+			for (int j = 0; j < count; j++) {
+				if (j != i)
+					total += fields != null ? fields.similarity(kernel, rows[i], rows[j], Double.NEGATIVE_INFINITY)
+							: kernel.similarity(keys, rows[i], rows[j], Double.NEGATIVE_INFINITY);
+			}
+			if (total > best) {
+				best = total;
+				group.medoid = rows[i];
+			}
+		}
+		group.medoidSize = group.size;
+		return group.medoid;
+	}
+
+	/**
+	 * @return true if the monitor stopped the last run
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Method to add the work of the kernels that ran the ranges to the counters of another kernel
+	 * @param kernel the kernel receiving the counters
+	 */
+	public void addCounters(SimilarityKernel kernel) {
+		kernel.addCounters(alignments.get(), lengthPrunes.get(), countPrunes.get(), earlyExits.get());
+	}
+
+	/**
+	 * @return the largest number of groups kept in the window of a range by the last run
+	 */
+	public int getPeakWindow() {
+		return peakWindow;
+	}
+
+	/**
+	 * Sliding window over one range of the sorted rows, with groups local to the range
+	 */
+	private class RangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] order;
+		private final int from; // First position of the warm-up
+		private final int start; // First position of the range
+		private final int end; // Position after the range
+		private final ConcurrentUnionFind groups;
+		private int peakWindow; // Largest number of groups kept in the window, read once the task is joined
+
+		RangeTask(int[] order, int from, int start, int end, ConcurrentUnionFind groups) {
+			this.order = order;
+			this.from = from;
+			this.start = start;
+			this.end = end;
+			this.groups = groups;
+		}
+
+		protected void compute() {
+			SimilarityKernel kernel = SimilarityKernel.forCurrentThread();
+			// A worker may run several ranges with its kernel, so only the work of this range is counted
+			long startAlignments = kernel.getAlignments();
+			long startLengthPrunes = kernel.getLengthPrunes();
+			long startCountPrunes = kernel.getCountPrunes();
+			long startEarlyExits = kernel.getEarlyExits();
+			try {
+				slide(kernel);
+			} finally {
+				alignments.addAndGet(kernel.getAlignments() - startAlignments);
+				lengthPrunes.addAndGet(kernel.getLengthPrunes() - startLengthPrunes);
+				countPrunes.addAndGet(kernel.getCountPrunes() - startCountPrunes);
+				earlyExits.addAndGet(kernel.getEarlyExits() - startEarlyExits);
+			}
+		}
+
+		/**
+		 * Method to run the sliding window over the warm-up and the range
+		 * @param kernel the kernel of the calling thread
+		 */
+		private void slide(SimilarityKernel kernel) {
+			// The window holds slots of the group pool, which are reused once their group leaves the window
+			WindowBuffer queue = new WindowBuffer(maxWindowSize + 1);
+			Group[] pool = new Group[maxWindowSize + 1];
+			for (int slot = 0; slot < pool.length; slot++)
+				pool[slot] = new Group();
+			int windowLimit = windowSize;
+			int[] verified = new int[16];
+			double[] similarities = new double[16];
+			for (int i = from; i < end && !stopped; i++) {
+				if (((i - from) & (PROGRESS_ROWS - 1)) == 0) {
+					// Rows of the range in the next block, the warm-up rows belong to the previous range
+					processed.addAndGet(Math.max(0, Math.min(i + PROGRESS_ROWS, end) - Math.max(i, start)));
+				}
+				int index = order[i];
+				boolean changed = false;
+				for (int j = queue.first(); j >= 0 && !changed; j = queue.next(j)) {
+					Group group = pool[j];
+					if (similarities.length < group.size) {
+						verified = new int[group.members.length];
+						similarities = new double[group.members.length];
+					}
+					// Check that the members of the group satisfy the matching threshold to be merged
+					if (matchesAll(kernel, index, group, verified, similarities)) {
+						if (i >= start) {
+							groups.union(index, group.members[0]);
+							if (mergeSimilarities != null)
+								recordMerge(index, group, similarities[0]);
+						}
+						group.add(index, i >= start);
+						changed = true;
+					}
+				}
+				if (!changed) {
+					queue.addFirst(index);
+					pool[queue.first()].reset(index, i >= start);
+				}
+				windowLimit = DuplicateDetector.adaptWindow(windowLimit, changed, windowSize, maxWindowSize);
+				while (queue.size() > windowLimit)
+					queue.removeLast();
+				peakWindow = Math.max(peakWindow, queue.size());
+			}
+		}
+	}
+
+	/**
+	 * Method to record the similarity of a row of the range joining a group to the representative of the merged
+	 * group, when that representative is the row itself or the representative of the group. The representative of
+	 * the group is only recorded if it belongs to the range, another range may be recording it.
+	 * @param index the id of the row
+	 * @param group the group it joins
+	 * @param similarity the similarity between the row and the representative of the group
+	 */
+	private void recordMerge(int index, Group group, double similarity) {
+		if (index > group.members[0]) {
+			mergeSimilarities[index] = similarity;
+			mergeRepresentatives[index] = group.members[0] + 1;
+		} else if (group.owned) {
+			mergeSimilarities[group.members[0]] = similarity;
+			mergeRepresentatives[group.members[0]] = index + 1;
+		}
+	}
+
+	/**
+	 * Row ids of a group local to a range, with the representative, the smallest of them, first
+	 */
+	private static class Group {
+		private int[] members = new int[2];
+		private int size;
+		private int medoid; // Cached medoid of the group
+		private int medoidSize; // Size of the group when its medoid was chosen, 0 before it is chosen
+		private boolean owned; // Whether the representative belongs to the range rather than to its warm-up
+
+		void reset(int index, boolean owned) {
+			members[0] = index;
+			size = 1;
+			medoid = index;
+			medoidSize = 0;
+			this.owned = owned;
+		}
+
+		void add(int index, boolean owned) {
+			if (size == members.length)
+				members = Arrays.copyOf(members, size * 2);
+			members[size++] = index;
+			if (index < members[0]) {
+				members[size - 1] = members[0];
+				members[0] = index;
+				this.owned = owned;
+			}
+		}
+	}
+}
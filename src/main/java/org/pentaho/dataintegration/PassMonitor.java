@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Follows the passes of a {@link DuplicateDetector} as they run, and can stop them.
+ */
+public interface PassMonitor {
+
+	/**
+	 * Method called every fraction of a second while a pass runs, or while the keys are sorted for it, always from
+	 * the thread running the detector
+	 * @param processed the number of rows of the pass processed so far
+	 * @param total the number of rows of the pass
+	 * @return false to stop the detection, leaving the groups found until then
+	 */
+	boolean progress(int processed, int total);
+}
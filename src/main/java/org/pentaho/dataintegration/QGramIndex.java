@@ -0,0 +1,475 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index of the q-grams of the comparison keys, which finds every pair of rows whose similarity can reach
+ * the threshold, as in the prefix filtering of the PPJoin and Ed-Join similarity joins.
+ *
+ * The q-grams of a lower case key, each tagged with its number of earlier occurrences in the key, form a set of
+ * tokens sorted from the q-gram held by the fewest rows to the most common one. An edit destroys the q-grams
+ * overlapping it, so the shortest prefix of these tokens whose q-grams need more edits to destroy than the largest
+ * distance tau allowed by the threshold keeps a q-gram in any key within tau edits, and the rarest token shared by
+ * two such keys is in the prefixes of both. Rows are inserted from the shortest key to the longest, so that each
+ * row probes the index as the longest key of its pairs, and only these prefixes are indexed and probed. A pair
+ * found in the index is dropped when the lengths of the keys already exceed the distance (length filter), or when
+ * the tokens left after a shared one can no longer reach the |x| - q * tau tokens that the keys share at least
+ * (positional filter), or when the q-grams of the longest key missing from the other one need more than tau edits
+ * to destroy (mismatch filter). Rows whose q-grams can all be destroyed within the distance are compared with all
+ * the rows of a compatible length instead.
+ *
+ * The filters only drop pairs that cannot reach the threshold, so the rows returned include every row whose
+ * normalized edit similarity to the row inserted is at least the threshold. The q-gram size is lowered when
+ * needed so that a key keeps more q-grams than its edits can destroy.
+ */
+public class QGramIndex implements CandidateIndex {
+
+	private static final int NONE = -1;
+	private static final int PRUNED = -1; // Overlap of the rows dropped by the positional filter
+
+	private final double threshold;
+	private final int qGramSize;
+	private char[] buffer = new char[64]; // Lower case copy of the key being inserted
+	private long[] tokens = new long[64]; // Tokens of the key being inserted, as q-gram slot or rank and position
+	private int[] occurrences = new int[64]; // Number of earlier occurrences of the q-gram of each token
+	private int[] positionOccurrences = new int[64]; // Number of earlier occurrences of the q-gram at each position
+	private boolean[] destroyed = new boolean[64]; // Positions of the key whose q-grams are in the prefix
+	private int[] gramKeys = new int[1024]; // Hash of each distinct q-gram
+	private int[] gramRows = new int[1024]; // Number of rows holding each q-gram
+	private int[] gramCounts = new int[1024]; // Largest number of occurrences of each q-gram in a key
+	private int[] gramRanks = new int[1024]; // Rank of the first occurrence of each q-gram once prepared
+	private boolean[] gramUsed = new boolean[1024];
+	private int gramCount; // Number of distinct q-grams
+	private int[] heads = new int[0]; // Most recent posting of each token, by rank
+	private int[] postingRows = new int[4096]; // Row of each posting
+	private int[] postingPositions = new int[4096]; // Position of the token in the sorted tokens of the row
+	private int[] postingNext = new int[4096]; // Previous posting of the same token
+	private int postings; // Number of postings
+	private int[] rowRanks = new int[0]; // Sorted token ranks of the rows inserted, one row after the other
+	private int[] rowStarts = new int[0]; // Offset of the token ranks of each row, by row id
+	private int rankCount; // Number of token ranks of the rows inserted
+	private int[] lengthHeads = new int[64]; // Most recent row of each key length
+	private int[] lengthNext = new int[0]; // Previous row of the same key length, by row id
+	private int[] rowLengths = new int[0]; // Length of the key of each row
+	private int[] stamps = new int[0]; // Last row whose candidates were looked up in each row, plus 1
+	private int[] overlaps = new int[0]; // Prefix tokens shared with the row being inserted, by row id
+	private int[] candidates = new int[64]; // Candidates of the row being inserted
+	private int candidateCount;
+	private int rows; // Number of rows
+	private long collisions; // Number of candidates returned
+
+	/**
+	 * @param threshold the minimum normalized edit similarity of the pairs to find
+	 * @param qGramSize the largest number of characters of the q-grams
+	 */
+	public QGramIndex(double threshold, int qGramSize) {
+		this.threshold = threshold;
+		int q = Math.max(1, qGramSize);
+		// Each edit destroys up to q q-grams, which must stay below the length allowed for each edit
+		while (q > 1 && q * (1 - threshold) >= 1 - 1e-9)
+			q--;
+		this.qGramSize = q;
+		Arrays.fill(lengthHeads, NONE);
+	}
+
+	public boolean isIncremental() {
+		return false;
+	}
+
+	/**
+	 * Method to count the rows holding each q-gram, which sets the global order of the tokens, and sort the rows
+	 * from the shortest key to the longest
+	 */
+	public int[] prepare(KeyArena keys) {
+		rows = keys.size();
+		lengthNext = new int[rows];
+		rowLengths = new int[rows];
+		rowStarts = new int[rows];
+		stamps = new int[rows];
+		overlaps = new int[rows];
+		int maxLength = 0;
+		long totalGrams = 0;
+		for (int id = 0; id < rows; id++) {
+			int grams = computeTokens(keys, id);
+			totalGrams += grams;
+			for (int i = 0; i < grams; i++) {
+				int slot = (int) (tokens[i] >>> 32);
+				if (occurrences[i] == 0)
+					gramRows[slot]++;
+				gramCounts[slot] = Math.max(gramCounts[slot], occurrences[i] + 1);
+			}
+			rowLengths[id] = keys.length(id);
+			maxLength = Math.max(maxLength, rowLengths[id]);
+		}
+
+		// Rare q-grams first, so that the prefixes hold the most selective tokens, and the occurrences of a
+		// q-gram in a row next to each other
+		long[] order = new long[gramCount];
+		int distinct = 0;
+		for (int slot = 0; slot < gramKeys.length; slot++) {
+			if (gramUsed[slot])
+				order[distinct++] = (long) gramRows[slot] << 32 | slot;
+		}
+		Arrays.sort(order);
+		int rank = 0;
+		for (int i = 0; i < distinct; i++) {
+			int slot = (int) order[i];
+			gramRanks[slot] = rank;
+			rank += gramCounts[slot];
+		}
+		heads = new int[rank];
+		Arrays.fill(heads, NONE);
+		rowRanks = new int[(int) totalGrams];
+
+		// Counting sort of the rows on the length of their keys, keeping the order of the ids
+		int[] starts = new int[maxLength + 2];
+		for (int id = 0; id < rows; id++)
+			starts[rowLengths[id] + 1]++;
+		for (int l = 1; l < starts.length; l++)
+			starts[l] += starts[l - 1];
+		int[] sorted = new int[rows];
+		for (int id = 0; id < rows; id++)
+			sorted[starts[rowLengths[id]]++] = id;
+		return sorted;
+	}
+
+	/**
+	 * Method to insert a row and collect the rows already inserted that pass the length, prefix, positional and
+	 * mismatch filters, so that every row whose similarity can reach the threshold is returned. Rows must be inserted in
+	 * the order returned by {@link #prepare(KeyArena)}.
+	 */
+	public int insert(KeyArena keys, int id) {
+		candidateCount = 0;
+		int length = keys.length(id);
+		int grams = computeTokens(keys, id);
+		if (positionOccurrences.length < grams)
+			positionOccurrences = new int[tokens.length];
+		for (int i = 0; i < grams; i++) {
+			int slot = (int) (tokens[i] >>> 32);
+			positionOccurrences[(int) tokens[i]] = occurrences[i];
+			tokens[i] = (long) (gramRanks[slot] + occurrences[i]) << 32 | (tokens[i] & 0xFFFFFFFFL);
+		}
+		Arrays.sort(tokens, 0, grams);
+		int distance = SimilarityKernel.maxDistance(length, threshold);
+		// Pairs with this row as the longest key share a token when its prefix needs more edits than the distance
+		int probePrefix = threshold > 0 ? prefix(grams, distance) : NONE;
+		if (probePrefix == NONE) {
+			scanLengths(id, length, distance);
+		} else {
+			for (int i = 0; i < probePrefix; i++) {
+				for (int posting = heads[rank(i)]; posting != NONE; posting = postingNext[posting])
+					probe(id, length, grams, distance, i, postingRows[posting], postingPositions[posting]);
+			}
+		}
+
+		int count = 0;
+		for (int c = 0; c < candidateCount; c++) {
+			if (overlaps[candidates[c]] == PRUNED)
+				continue;
+			// The q-grams of rows scanned by length can all be destroyed within the distance
+			if (probePrefix == NONE || mismatchEdits(grams, candidates[c]) <= distance)
+				candidates[count++] = candidates[c];
+		}
+		candidateCount = count;
+		collisions += count;
+
+		rowStarts[id] = rankCount;
+		for (int i = 0; i < grams; i++)
+			rowRanks[rankCount++] = rank(i);
+
+		if (threshold > 0) {
+			int indexPrefix = prefix(grams, longestDistance(length));
+			if (indexPrefix == NONE)
+				indexPrefix = grams;
+			for (int i = 0; i < indexPrefix; i++)
+				addPosting(rank(i), id, i);
+		}
+		if (length >= lengthHeads.length) {
+			int size = lengthHeads.length;
+			lengthHeads = Arrays.copyOf(lengthHeads, Math.max(length + 1, size * 2));
+			Arrays.fill(lengthHeads, size, lengthHeads.length, NONE);
+		}
+		lengthNext[id] = lengthHeads[length];
+		lengthHeads[length] = id;
+		return count;
+	}
+
+	public int getCandidate(int i) {
+		return candidates[i];
+	}
+
+	public int bytesPerRow() {
+		// Row arrays, and the token ranks, postings and q-gram tables shared by the rows
+		return 20 + (int) ((4L * rowRanks.length + 12L * postings + 17L * gramKeys.length + 4L * heads.length)
+				/ Math.max(1, rows));
+	}
+
+	public long getCollisions() {
+		return collisions;
+	}
+
+	/**
+	 * @return the size of the q-grams, lowered from the configured size when the threshold needs it
+	 */
+	public int getQGramSize() {
+		return qGramSize;
+	}
+
+	/**
+	 * Method to obtain the number of sorted tokens of the row being inserted whose q-grams cannot all be destroyed
+	 * within a distance, placing each edit so that it destroys as many q-grams of the prefix as possible
+	 * @param grams the number of tokens of the row
+	 * @param distance the largest number of edits
+	 * @return int corresponding to the length of the shortest such prefix, or NONE if every prefix can be
+	 * destroyed
+	 */
+	private int prefix(int grams, int distance) {
+		if (edits(grams, grams) <= distance)
+			return NONE;
+		// The edits needed never decrease as the prefix grows
+		int low = 0;
+		int high = grams;
+		while (high - low > 1) {
+			int middle = (low + high) >>> 1;
+			if (edits(middle, grams) > distance)
+				high = middle;
+			else
+				low = middle;
+		}
+		return high;
+	}
+
+	/**
+	 * Method to obtain the fewest edits that destroy the q-grams of a prefix of the sorted tokens
+	 * @param prefix the number of tokens of the prefix
+	 * @param grams the number of tokens of the row
+	 * @return int corresponding to the number of edits
+	 */
+	private int edits(int prefix, int grams) {
+		if (destroyed.length < grams)
+			destroyed = new boolean[Math.max(grams, destroyed.length * 2)];
+		Arrays.fill(destroyed, 0, grams, false);
+		for (int i = 0; i < prefix; i++)
+			destroyed[(int) tokens[i]] = true;
+		return countEdits(grams);
+	}
+
+	/**
+	 * Method to obtain the fewest edits that destroy the q-grams of the row being inserted missing from a row
+	 * inserted before, which the edits from one key to the other must destroy. The q-grams found fewer times in
+	 * the other row are left out, since the occurrences destroyed are not known.
+	 * @param grams the number of tokens of the row being inserted
+	 * @param row the id of the row inserted before
+	 * @return int corresponding to the number of edits
+	 */
+	private int mismatchEdits(int grams, int row) {
+		if (destroyed.length < grams)
+			destroyed = new boolean[Math.max(grams, destroyed.length * 2)];
+		int j = rowStarts[row];
+		int end = j + Math.max(0, rowLengths[row] - qGramSize + 1);
+		boolean missing = false;
+		for (int i = 0; i < grams; i++) {
+			int position = (int) tokens[i];
+			// The occurrences of a q-gram follow its first occurrence in the sorted tokens
+			if (positionOccurrences[position] == 0) {
+				int rank = rank(i);
+				while (j < end && rowRanks[j] < rank)
+					j++;
+				missing = j == end || rowRanks[j] != rank;
+			}
+			destroyed[position] = missing;
+		}
+		return countEdits(grams);
+	}
+
+	/**
+	 * Method to count the edits that destroy the q-grams at the positions marked, placing each edit so that it
+	 * destroys as many of them as possible
+	 * @param grams the number of positions
+	 * @return int corresponding to the number of edits
+	 */
+	private int countEdits(int grams) {
+		int edits = 0;
+		for (int position = 0; position < grams; position++) {
+			if (destroyed[position]) {
+				// An edit of the last character of this q-gram also destroys the next q - 1 q-grams
+				edits++;
+				position += qGramSize - 1;
+			}
+		}
+		return edits;
+	}
+
+	/**
+	 * Method to obtain the largest distance allowed between a key and the longer keys it can match
+	 * @param length the length of the key
+	 * @return int corresponding to the largest distance over the lengths of the longer keys
+	 */
+	private int longestDistance(int length) {
+		int distance = SimilarityKernel.maxDistance(length, threshold);
+		for (int longer = length + 1; longer - length <= SimilarityKernel.maxDistance(longer, threshold); longer++)
+			distance = Math.max(distance, SimilarityKernel.maxDistance(longer, threshold));
+		return distance;
+	}
+
+	/**
+	 * Method to account for a prefix token shared with an indexed row, dropping the row once its lengths or the
+	 * positions of the shared tokens rule out the threshold
+	 */
+	private void probe(int id, int length, int grams, int distance, int position, int row, int rowPosition) {
+		int rowLength = rowLengths[row];
+		if (stamps[row] == id + 1) {
+			if (overlaps[row] == PRUNED)
+				return;
+		} else {
+			stamps[row] = id + 1;
+			if (length - rowLength > distance) {
+				overlaps[row] = PRUNED;
+				return;
+			}
+			overlaps[row] = 0;
+			addCandidate(row);
+		}
+		int rowGrams = Math.max(0, rowLength - qGramSize + 1);
+		int required = grams - qGramSize * distance;
+		int bound = overlaps[row] + 1 + Math.min(grams - position - 1, rowGrams - rowPosition - 1);
+		overlaps[row] = bound < required ? PRUNED : overlaps[row] + 1;
+	}
+
+	/**
+	 * Method to add as candidates all the rows whose lengths are compatible with the row
+	 */
+	private void scanLengths(int id, int length, int distance) {
+		for (int l = Math.max(0, length - distance); l <= length && l < lengthHeads.length; l++) {
+			for (int row = lengthHeads[l]; row != NONE; row = lengthNext[row]) {
+				stamps[row] = id + 1;
+				overlaps[row] = 0;
+				addCandidate(row);
+			}
+		}
+	}
+
+	private int rank(int i) {
+		return (int) (tokens[i] >>> 32);
+	}
+
+	/**
+	 * Method to compute the tokens of a key into the token buffers, as the slot of the q-gram and its position,
+	 * and its number of earlier occurrences
+	 * @return int corresponding to the number of tokens
+	 */
+	private int computeTokens(KeyArena keys, int id) {
+		buffer = SimilarityKernel.load(keys, id, buffer);
+		int length = keys.length(id);
+		int grams = Math.max(0, length - qGramSize + 1);
+		if (tokens.length < grams) {
+			tokens = new long[Math.max(grams, tokens.length * 2)];
+			occurrences = new int[tokens.length];
+		}
+		for (int start = 0; start < grams; start++) {
+			int gram = 0;
+			for (int i = start; i < start + qGramSize; i++)
+				gram = 31 * gram + buffer[i];
+			tokens[start] = (long) findGram(gram) << 32 | start;
+		}
+		// Repeated q-grams become distinct tokens through their number of earlier occurrences
+		Arrays.sort(tokens, 0, grams);
+		for (int i = 0; i < grams; i++) {
+			boolean repeated = i > 0 && tokens[i] >>> 32 == tokens[i - 1] >>> 32;
+			occurrences[i] = repeated ? occurrences[i - 1] + 1 : 0;
+		}
+		return grams;
+	}
+
+	/**
+	 * Method to find the slot of a q-gram, adding it when missing
+	 * @param gram the hash of the q-gram
+	 * @return int corresponding to the slot of the q-gram
+	 */
+	private int findGram(int gram) {
+		int slot = findSlot(gram);
+		if (!gramUsed[slot]) {
+			gramUsed[slot] = true;
+			gramKeys[slot] = gram;
+			if (++gramCount * 2 > gramKeys.length) {
+				grow();
+				slot = findSlot(gram);
+			}
+		}
+		return slot;
+	}
+
+	private int findSlot(int gram) {
+		int mask = gramKeys.length - 1;
+		int slot = mix(gram) & mask;
+		while (gramUsed[slot] && gramKeys[slot] != gram)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Method to double the q-gram table, which only happens while counting the q-grams
+	 */
+	private void grow() {
+		int[] oldKeys = gramKeys;
+		int[] oldRows = gramRows;
+		int[] oldCounts = gramCounts;
+		boolean[] oldUsed = gramUsed;
+		gramKeys = new int[oldKeys.length * 2];
+		gramRows = new int[oldKeys.length * 2];
+		gramCounts = new int[oldKeys.length * 2];
+		gramRanks = new int[oldKeys.length * 2];
+		gramUsed = new boolean[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				int slot = findSlot(oldKeys[i]);
+				gramUsed[slot] = true;
+				gramKeys[slot] = oldKeys[i];
+				gramRows[slot] = oldRows[i];
+				gramCounts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	private void addPosting(int rank, int row, int position) {
+		if (postings == postingRows.length) {
+			postingRows = Arrays.copyOf(postingRows, postings * 2);
+			postingPositions = Arrays.copyOf(postingPositions, postings * 2);
+			postingNext = Arrays.copyOf(postingNext, postings * 2);
+		}
+		postingRows[postings] = row;
+		postingPositions[postings] = position;
+		postingNext[postings] = heads[rank];
+		heads[rank] = postings++;
+	}
+
+	private void addCandidate(int row) {
+		if (candidateCount == candidates.length)
+			candidates = Arrays.copyOf(candidates, candidateCount * 2);
+		candidates[candidateCount++] = row;
+	}
+
+	private static int mix(int x) {
+		x = (x ^ (x >>> 16)) * 0x45D9F3B;
+		x = (x ^ (x >>> 16)) * 0x45D9F3B;
+		return x ^ (x >>> 16);
+	}
+}
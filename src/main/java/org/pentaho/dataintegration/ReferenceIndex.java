@@ -0,0 +1,735 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Rows of the previous runs kept in a file, so that a run only compares its own rows with the history instead of
+ * detecting the duplicates of the whole history again.
+ *
+ * The file holds the group id, the comparison key, the sort keys of the extra passes and the values of the fields
+ * compared on their own of every row of the history, the row numbers sorted in the order of each pass and, for
+ * the MinHash engine, the band hashes of every row sorted as postings. It is memory-mapped, so that a run only
+ * reads the pages around its own rows.
+ *
+ * Group ids are the 1-based number of the first row of the group in the history, and never change. The rows of a
+ * run are grouped among themselves first, then each new group joins the reference group that best matches one of
+ * its rows, among the rows found next to them in the stored orders or in their buckets, provided that its
+ * representative also matches the first row of that group. Reference groups are never merged together, and the
+ * groups that join none keep the number of their first row as id.
+ *
+ * Rows of the run are recorded as they are written, and once the run is over the new index is written next to the
+ * old one, copying its rows and merging its orders with the sorted rows of the run, then replaces it. No rows are
+ * compared while writing, so its cost is that of copying the file. A row of the run whose record is identical to a
+ * stored row of the reference group it joins is a copy: it keeps its row number, so that group ids stay valid, but
+ * its record is the stored one and it is left out of the orders and postings, so that feeding the whole history
+ * again does not grow the index by more than its row tables.
+ */
+public class ReferenceIndex implements Closeable {
+
+	private static final int MAGIC = 0x44494458; // Start of every index file
+	private static final int VERSION = 2; // Version 1 has no count of ordered rows, all rows being ordered
+	private static final int SEGMENT_SHIFT = 30; // Files are mapped in segments of 1 GB
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_BUCKET_ROWS = 64; // Largest number of rows of a bucket compared with each row
+	private static final long BUCKET_MASK = 0xFFFFFFFF00000000L; // Band hash part of a posting, the row being the rest
+
+	private final File file;
+	private final String layout; // Settings the keys of the rows are built and hashed with
+	private final int passes; // Number of stored orders: comparison keys, reversed keys, then each blocking key
+	private final int fieldCount; // Number of values of fields compared on their own of each row
+	private final MinHashIndex hashes; // Computes the band hashes of the rows, null to store no postings
+	private final int neighbours; // Number of rows compared on each side of the position of a row in a stored order
+	private boolean compatible = true; // Whether the stored rows were built with the same settings
+	private int rows; // Number of stored rows
+	private int orderedRows; // Number of stored rows in the orders, copies of other rows being left out
+	private long postingCount; // Number of stored postings
+	private long dataBytes; // Number of bytes of the stored records
+	private MappedByteBuffer[] segments; // Stored index, null when there is none
+	private long groupsOffset; // Position of the group id of each row
+	private long recordsOffset; // Position of the record of each row, relative to the data
+	private long ordersOffset; // Position of the row numbers sorted in the order of each pass
+	private long postingsOffset; // Position of the postings, band hash and row number, sorted
+	private long dataOffset; // Position of the records
+
+	private int[] loadedNodes; // Detector id plus one of each stored row read, 0 for the others, by stored row
+	private int[] loadedList = new int[1024]; // Stored rows read since the last release
+	private int loadedCount;
+	private int loadedRows; // Number of stored rows read into the detector, counting those read again
+	private int joinedGroups; // Number of groups of the run that joined a reference group
+	private final StringBuilder key = new StringBuilder(256); // Comparison key of the stored row being read
+	private final StringBuilder[] fieldValues; // Field values of the stored row being read, null without fields
+	private final long[] bandKeys; // Band hashes of the row being looked up or recorded
+	private int[] candidates = new int[64]; // Stored rows found for the row being matched
+	private int candidateCount;
+	private int[] candidateNodes = new int[64]; // Detector id of each of these rows
+	private double[] similarities = new double[64]; // Similarity of the row being matched to each of these rows
+	private int[] matchRows = new int[16]; // Stored rows that match a row of the group being matched
+	private double[] matchSimilarities = new double[16]; // Similarity of each of them
+	private int matchCount;
+	private int[] copyRows = new int[16]; // Stored row identical to each row of the group being attached, -1 for none
+	private long[] attachedGroups = new long[1024]; // Reference group joined by each group of the run, by representative
+	private int[] attachedNodes = new int[1024]; // Detector id of the first row of that reference group, by representative
+
+	private KeyArena runKeys = new KeyArena(); // Comparison keys of the rows of the run, in the order they are recorded
+	private final KeyArena[] runBlockingKeys; // Sort keys of the rows of the run in each extra pass
+	private int[] runRows = new int[1024]; // Number of each recorded row in the run, by order of recording
+	private long[] runGroups = new long[1024]; // Group id of each row of the run, by row number
+	private long[] runOffsets = new long[1024]; // Position of the record of each row of the run in the pending file
+	private int runCount; // Number of rows of the run
+	private int[] runCopies = new int[1024]; // Stored row plus one that each row of the run is a copy of, by row number
+	private int copiedRows; // Number of rows of the run recorded as copies
+	private long[] runPostings = new long[1024]; // Postings of the rows of the run
+	private int runPostingCount;
+	private File pendingFile; // Records of the rows of the run
+	private DataOutputStream pending;
+	private long pendingBytes;
+
+	/**
+	 * @param file the index file, which does not need to exist
+	 * @param layout the settings the keys of the rows are built and hashed with, which must be those of the file
+	 * @param blockingPasses the number of extra passes sorted on blocking keys
+	 * @param fieldCount the number of fields compared on their own, 0 when rows are compared on their keys
+	 * @param hashes the MinHash index computing the band hashes of the rows, or null to store no postings
+	 * @param neighbours the number of stored rows compared on each side of the position of a row in a stored order
+	 */
+	public ReferenceIndex(File file, String layout, int blockingPasses, int fieldCount, MinHashIndex hashes,
+			int neighbours) throws IOException {
+		this.file = file;
+		this.layout = layout;
+		passes = 2 + blockingPasses;
+		this.fieldCount = fieldCount;
+		this.hashes = hashes;
+		this.neighbours = Math.max(1, neighbours);
+		fieldValues = fieldCount > 0 ? new StringBuilder[fieldCount] : null;
+		for (int f = 0; f < fieldCount; f++)
+			fieldValues[f] = new StringBuilder(32);
+		bandKeys = new long[hashes != null ? hashes.getBands() : 0];
+		runBlockingKeys = new KeyArena[blockingPasses];
+		for (int pass = 0; pass < blockingPasses; pass++)
+			runBlockingKeys[pass] = new KeyArena();
+		if (file.exists())
+			open();
+	}
+
+	/**
+	 * Method to read the header of the index file and map the file
+	 */
+	private void open() throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			int version = input.length() < 44 || input.readInt() != MAGIC ? 0 : input.readInt();
+			if (version != 1 && version != VERSION)
+				throw new IOException(file + " is not a reference index");
+			rows = input.readInt();
+			orderedRows = version == 1 ? rows : input.readInt();
+			int storedPasses = input.readInt();
+			int storedFields = input.readInt();
+			int storedBands = input.readInt();
+			postingCount = input.readLong();
+			dataBytes = input.readLong();
+			char[] chars = new char[input.readInt()];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = input.readChar();
+			compatible = layout.equals(new String(chars)) && storedPasses == passes && storedFields == fieldCount &&
+					storedBands == bandKeys.length;
+			if (!compatible)
+				return;
+			groupsOffset = align((version == 1 ? 44 : 48) + 2L * chars.length);
+			recordsOffset = groupsOffset + 8L * rows;
+			ordersOffset = recordsOffset + 8L * rows;
+			postingsOffset = ordersOffset + passes * align(4L * orderedRows);
+			dataOffset = postingsOffset + 8 * postingCount;
+			FileChannel channel = input.getChannel();
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+			for (int s = 0; s < segments.length; s++) {
+				long start = (long) s << SEGMENT_SHIFT;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, size - start));
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return true if the stored rows were built with the settings of this run, or if there are none yet
+	 */
+	public boolean isCompatible() {
+		return compatible;
+	}
+
+	/**
+	 * Method to join a group of the run to the reference group matching it best. Each row of the group is compared
+	 * with the stored rows next to it in each stored order and in its buckets, then the reference groups of the
+	 * rows it matches are tried from the most similar one, until one whose first row matches the representative.
+	 * @param detector the detector of the run
+	 * @param members the ids of the rows of the group
+	 * @param count the number of rows of the group
+	 * @return long corresponding to the id of the reference group joined, or 0 if the group joined none
+	 */
+	public long attach(DuplicateDetector detector, int[] members, int count) {
+		if (rows == 0)
+			return 0;
+		int representative = detector.getGroups().representative(members[0]);
+		// A recycled id may still hold the reference group of a group already written
+		if (representative < attachedGroups.length)
+			attachedGroups[representative] = 0;
+		matchCount = 0;
+		if (copyRows.length < count)
+			copyRows = new int[Math.max(count, copyRows.length * 2)];
+		for (int m = 0; m < count; m++) {
+			copyRows[m] = -1;
+			collectCandidates(detector, members[m]);
+			if (candidateNodes.length < candidateCount) {
+				candidateNodes = new int[candidates.length];
+				similarities = new double[candidates.length];
+			}
+			for (int c = 0; c < candidateCount; c++)
+				candidateNodes[c] = load(detector, candidates[c]);
+			detector.similarities(members[m], candidateNodes, candidateCount, similarities);
+			for (int c = 0; c < candidateCount; c++) {
+				if (similarities[c] >= detector.getMatchThreshold()) {
+					addMatch(candidates[c], similarities[c]);
+					if (copyRows[m] < 0 && isCopy(detector, members[m], candidates[c]))
+						copyRows[m] = candidates[c];
+				}
+			}
+		}
+		while (matchCount > 0) {
+			int best = 0;
+			for (int i = 1; i < matchCount; i++) {
+				if (matchSimilarities[i] > matchSimilarities[best])
+					best = i;
+			}
+			long group = getLong(groupsOffset + 8L * matchRows[best]);
+			int first = load(detector, (int) (group - 1));
+			if (detector.isMatch(representative, first)) {
+				if (representative >= attachedGroups.length) {
+					attachedGroups = Arrays.copyOf(attachedGroups, Math.max(representative + 1, attachedGroups.length * 2));
+					attachedNodes = Arrays.copyOf(attachedNodes, attachedGroups.length);
+				}
+				attachedGroups[representative] = group;
+				attachedNodes[representative] = first;
+				joinedGroups++;
+				for (int m = 0; m < count; m++) {
+					if (copyRows[m] >= 0 && getLong(groupsOffset + 8L * copyRows[m]) == group)
+						addCopy(detector.rowNumber(members[m]), copyRows[m]);
+				}
+				return group;
+			}
+			for (int i = matchCount - 1; i >= 0; i--) {
+				if (getLong(groupsOffset + 8L * matchRows[i]) == group) {
+					matchCount--;
+					matchRows[i] = matchRows[matchCount];
+					matchSimilarities[i] = matchSimilarities[matchCount];
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Method to obtain the group id of a row of the run
+	 * @param detector the detector of the run
+	 * @param node the id of the row
+	 * @return long with the id of the reference group its group joined, or otherwise the 1-based number of the first
+	 * row of its group in the history
+	 */
+	public long getGroupId(DuplicateDetector detector, int node) {
+		int representative = detector.getGroups().representative(node);
+		if (representative < attachedGroups.length && attachedGroups[representative] != 0)
+			return attachedGroups[representative];
+		return rows + detector.rowNumber(representative) + 1L;
+	}
+
+	/**
+	 * @param detector the detector of the run
+	 * @param node the id of a row of the run
+	 * @return the detector id of the first row of the reference group its group joined, or -1 if it joined none
+	 */
+	public int getReferenceRepresentative(DuplicateDetector detector, int node) {
+		int representative = detector.getGroups().representative(node);
+		if (representative < attachedGroups.length && attachedGroups[representative] != 0)
+			return attachedNodes[representative];
+		return -1;
+	}
+
+	/**
+	 * Method to release the stored rows read into the detector, which are read again if they are needed later
+	 * @param detector the detector of the run
+	 */
+	public void releaseRows(DuplicateDetector detector) {
+		for (int i = 0; i < loadedCount; i++) {
+			detector.release(loadedNodes[loadedList[i]] - 1);
+			loadedNodes[loadedList[i]] = 0;
+		}
+		loadedCount = 0;
+	}
+
+	/**
+	 * Method to record a row of the run, before its keys are released, so that it is stored with its group once the
+	 * run is over
+	 * @param detector the detector of the run
+	 * @param node the id of the row
+	 * @param group the group id of the row
+	 */
+	public void addRow(DuplicateDetector detector, int node, long group) throws IOException {
+		if (pending == null) {
+			File directory = file.getAbsoluteFile().getParentFile();
+			directory.mkdirs();
+			pendingFile = File.createTempFile("di-dup-reference", ".tmp", directory);
+			pending = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pendingFile), BUFFER_SIZE));
+		}
+		int row = detector.rowNumber(node);
+		if (row >= runGroups.length) {
+			runGroups = Arrays.copyOf(runGroups, Math.max(row + 1, runGroups.length * 2));
+			runOffsets = Arrays.copyOf(runOffsets, runGroups.length);
+		}
+		runGroups[row] = group;
+		runOffsets[row] = pendingBytes;
+		runCount = Math.max(runCount, row + 1);
+		// A copy of a stored row of its group adds nothing but its group id to the index
+		if (row < runCopies.length && runCopies[row] != 0) {
+			copiedRows++;
+			return;
+		}
+
+		String value = detector.getKeys().getString(node, false);
+		int id = runKeys.add(value);
+		writeString(value);
+		for (int pass = 0; pass < runBlockingKeys.length; pass++) {
+			value = detector.getBlockingKeys(pass).getString(node, false);
+			runBlockingKeys[pass].add(value);
+			writeString(value);
+		}
+		for (int f = 0; f < fieldCount; f++)
+			writeString(detector.getFields().getValue(node, f));
+		if (id == runRows.length)
+			runRows = Arrays.copyOf(runRows, id * 2);
+		runRows[id] = row;
+
+		if (hashes != null) {
+			hashes.bandKeys(detector.getKeys(), node, bandKeys);
+			if (runPostingCount + bandKeys.length > runPostings.length)
+				runPostings = Arrays.copyOf(runPostings, Math.max(runPostingCount + bandKeys.length, runPostings.length * 2));
+			for (int band = 0; band < bandKeys.length; band++)
+				runPostings[runPostingCount++] = (bandKeys[band] & BUCKET_MASK) | (rows + row);
+		}
+	}
+
+	/**
+	 * Method to write the stored rows followed by the rows of the run to a new index file, which then replaces the
+	 * old one. Every row of the run must have been recorded.
+	 */
+	public void write() throws IOException {
+		if (pending == null)
+			return;
+		pending.close();
+		pending = null;
+		int total = rows + runCount;
+		long[] postings = Arrays.copyOf(runPostings, runPostingCount);
+		Arrays.sort(postings);
+		// Several runs may write next to the same index, each one to a file of its own
+		File temporary = File.createTempFile("di-dup-reference", ".idx", file.getAbsoluteFile().getParentFile());
+		boolean written = false;
+		FileOutputStream stream = new FileOutputStream(temporary);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+		FileInputStream stored = segments != null ? new FileInputStream(file) : null;
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(total);
+			output.writeInt(orderedRows + runKeys.size());
+			output.writeInt(passes);
+			output.writeInt(fieldCount);
+			output.writeInt(bandKeys.length);
+			output.writeLong(postingCount + postings.length);
+			output.writeLong(dataBytes + pendingBytes);
+			output.writeInt(layout.length());
+			output.writeChars(layout);
+			pad(output, 48 + 2L * layout.length());
+
+			copy(stored, groupsOffset, 8L * rows, output, stream);
+			for (int row = 0; row < runCount; row++)
+				output.writeLong(runGroups[row]);
+			copy(stored, recordsOffset, 8L * rows, output, stream);
+			// Copies point to the record of the stored row, which keeps its position
+			for (int row = 0; row < runCount; row++) {
+				if (row < runCopies.length && runCopies[row] != 0)
+					output.writeLong(getLong(recordsOffset + 8L * (runCopies[row] - 1)));
+				else
+					output.writeLong(dataBytes + runOffsets[row]);
+			}
+
+			// The rows of both orders are merged, stored rows first among equal keys
+			for (int pass = 0; pass < passes; pass++) {
+				KeyArena keys = pass < 2 ? runKeys : runBlockingKeys[pass - 2];
+				int[] sorted = keys.sort(pass == 1);
+				long order = ordersOffset + pass * align(4L * orderedRows);
+				int i = 0;
+				int j = 0;
+				while (i < orderedRows || j < sorted.length) {
+					if (j == sorted.length || i < orderedRows && compare(getInt(order + 4L * i), pass, keys, sorted[j]) <= 0)
+						output.writeInt(getInt(order + 4L * i++));
+					else
+						output.writeInt(rows + runRows[sorted[j++]]);
+				}
+				pad(output, 4L * (orderedRows + sorted.length));
+			}
+			long i = 0;
+			int j = 0;
+			while (i < postingCount || j < postings.length) {
+				if (j == postings.length || i < postingCount && getLong(postingsOffset + 8 * i) <= postings[j])
+					output.writeLong(getLong(postingsOffset + 8 * i++));
+				else
+					output.writeLong(postings[j++]);
+			}
+
+			copy(stored, dataOffset, dataBytes, output, stream);
+			FileInputStream run = new FileInputStream(pendingFile);
+			try {
+				copy(run, 0, pendingBytes, output, stream);
+			} finally {
+				run.close();
+			}
+			written = true;
+		} finally {
+			output.close();
+			if (stored != null)
+				stored.close();
+			if (!written)
+				temporary.delete();
+		}
+		// Windows refuses to replace a file that is still mapped
+		unmap();
+		try {
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to release the rows of the run and delete their pending records. The index file is left as it is.
+	 */
+	public void close() {
+		unmap();
+		if (pending != null) {
+			try {
+				pending.close();
+			} catch (IOException e) {
+				// The file is deleted anyway
+			}
+			pending = null;
+		}
+		if (pendingFile != null)
+			pendingFile.delete();
+		runKeys.close();
+		for (int pass = 0; pass < runBlockingKeys.length; pass++)
+			runBlockingKeys[pass].close();
+	}
+
+	/**
+	 * Method to collect into candidates the stored rows next to a row of the run in each stored order and, with
+	 * postings, the most recent stored rows of each of its buckets, without repetitions
+	 * @param detector the detector of the run
+	 * @param node the id of the row
+	 */
+	private void collectCandidates(DuplicateDetector detector, int node) {
+		candidateCount = 0;
+		for (int pass = 0; pass < passes; pass++) {
+			KeyArena keys = pass < 2 ? detector.getKeys() : detector.getBlockingKeys(pass - 2);
+			long order = ordersOffset + pass * align(4L * orderedRows);
+			int low = 0;
+			int high = orderedRows;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compare(getInt(order + 4L * middle), pass, keys, node) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			for (int i = Math.max(0, low - neighbours); i < Math.min(orderedRows, low + neighbours); i++)
+				addCandidate(getInt(order + 4L * i));
+		}
+		if (hashes != null) {
+			hashes.bandKeys(detector.getKeys(), node, bandKeys);
+			for (int band = 0; band < bandKeys.length; band++) {
+				long bucket = bandKeys[band] & BUCKET_MASK;
+				// Row numbers are below 2^31, so the postings of the bucket end before the next one
+				long low = 0;
+				long high = postingCount;
+				while (low < high) {
+					long middle = (low + high) >>> 1;
+					if (getLong(postingsOffset + 8 * middle) < bucket + 0x80000000L)
+						low = middle + 1;
+					else
+						high = middle;
+				}
+				for (long i = low - 1; i >= 0 && i >= low - MAX_BUCKET_ROWS; i--) {
+					long posting = getLong(postingsOffset + 8 * i);
+					if ((posting & BUCKET_MASK) != bucket)
+						break;
+					addCandidate((int) posting);
+				}
+			}
+		}
+		Arrays.sort(candidates, 0, candidateCount);
+		int unique = 0;
+		for (int c = 0; c < candidateCount; c++) {
+			if (unique == 0 || candidates[c] != candidates[unique - 1])
+				candidates[unique++] = candidates[c];
+		}
+		candidateCount = unique;
+	}
+
+	private void addCandidate(int row) {
+		if (candidateCount == candidates.length)
+			candidates = Arrays.copyOf(candidates, candidateCount * 2);
+		candidates[candidateCount++] = row;
+	}
+
+	/**
+	 * Method to record that a row of the run is a copy of a stored row of the reference group its group joined
+	 * @param row the number of the row in the run
+	 * @param storedRow the number of the stored row
+	 */
+	private void addCopy(int row, int storedRow) {
+		if (row >= runCopies.length)
+			runCopies = Arrays.copyOf(runCopies, Math.max(row + 1, runCopies.length * 2));
+		runCopies[row] = storedRow + 1;
+	}
+
+	/**
+	 * Method to verify if the record of a row of the run is identical to the record of a stored row, with the same
+	 * comparison key, sort keys and field values
+	 * @param detector the detector of the run
+	 * @param node the id of the row
+	 * @param row the number of the stored row
+	 * @return true if both records are identical
+	 */
+	private boolean isCopy(DuplicateDetector detector, int node, int row) {
+		if (compare(row, 0, detector.getKeys(), node) != 0)
+			return false;
+		for (int pass = 2; pass < passes; pass++) {
+			if (compare(row, pass, detector.getBlockingKeys(pass - 2), node) != 0)
+				return false;
+		}
+		for (int f = 0; f < fieldCount; f++) {
+			readString(row, passes - 1 + f, key);
+			if (!detector.getFields().getValue(node, f).contentEquals(key))
+				return false;
+		}
+		return true;
+	}
+
+	private void addMatch(int row, double similarity) {
+		if (matchCount == matchRows.length) {
+			matchRows = Arrays.copyOf(matchRows, matchCount * 2);
+			matchSimilarities = Arrays.copyOf(matchSimilarities, matchCount * 2);
+		}
+		matchRows[matchCount] = row;
+		matchSimilarities[matchCount++] = similarity;
+	}
+
+	/**
+	 * Method to read a stored row into the detector, once
+	 * @param detector the detector of the run
+	 * @param row the number of the stored row
+	 * @return int corresponding to the id of the row in the detector
+	 */
+	private int load(DuplicateDetector detector, int row) {
+		if (loadedNodes == null)
+			loadedNodes = new int[rows];
+		if (loadedNodes[row] != 0)
+			return loadedNodes[row] - 1;
+		readString(row, 0, key);
+		for (int f = 0; f < fieldCount; f++)
+			readString(row, passes - 1 + f, fieldValues[f]);
+		int id = detector.addReference(key, fieldValues);
+		loadedNodes[row] = id + 1;
+		if (loadedCount == loadedList.length)
+			loadedList = Arrays.copyOf(loadedList, loadedCount * 2);
+		loadedList[loadedCount++] = row;
+		loadedRows++;
+		return id;
+	}
+
+	/**
+	 * Method to compare the sort key of a stored row in a pass with a key of an arena, in the order of
+	 * {@link KeyArena#compare(int, int, boolean)}
+	 * @param row the number of the stored row
+	 * @param pass the number of the stored order
+	 * @param keys the arena holding the other key
+	 * @param id the id of the other key
+	 * @return int negative, zero or positive as the stored key is before, equal or after the other one
+	 */
+	private int compare(int row, int pass, KeyArena keys, int id) {
+		long position = stringPosition(row, pass < 2 ? 0 : pass - 1);
+		int length = getInt(position);
+		position += 4;
+		int keyLength = keys.length(id);
+		boolean reversed = pass == 1;
+		for (int i = 0; i < Math.min(length, keyLength); i++) {
+			char x = getChar(position + 2L * (reversed ? length - 1 - i : i));
+			char y = keys.charAt(id, reversed ? keyLength - 1 - i : i);
+			if (x != y)
+				return x - y;
+		}
+		return length - keyLength;
+	}
+
+	/**
+	 * Method to locate a string of the record of a stored row. Records hold the comparison key, the sort key of
+	 * each extra pass and the value of each field compared on its own, each as its length followed by its
+	 * characters, padded to 4 bytes.
+	 * @param row the number of the stored row
+	 * @param string the number of the string in the record
+	 * @return long corresponding to the position of the length of the string
+	 */
+	private long stringPosition(int row, int string) {
+		long position = dataOffset + getLong(recordsOffset + 8L * row);
+		for (int s = 0; s < string; s++)
+			position += 4 + ((2L * getInt(position) + 3) & ~3L);
+		return position;
+	}
+
+	private void readString(int row, int string, StringBuilder target) {
+		long position = stringPosition(row, string);
+		int length = getInt(position);
+		target.setLength(0);
+		for (int i = 0; i < length; i++)
+			target.append(getChar(position + 4 + 2L * i));
+	}
+
+	private void writeString(String value) throws IOException {
+		pending.writeInt(value.length());
+		pending.writeChars(value);
+		if ((value.length() & 1) == 1)
+			pending.writeChar(0);
+		pendingBytes += 4 + 2 * ((value.length() + 1) & ~1);
+	}
+
+	/**
+	 * Method to copy a section of a file to the end of the index being written
+	 * @param source the file, or null when the section is empty
+	 * @param position the position of the section in the file
+	 * @param bytes the size of the section
+	 * @param output the stream writing the index, flushed first
+	 * @param target the underlying stream of the index
+	 */
+	private static void copy(FileInputStream source, long position, long bytes, DataOutputStream output,
+			FileOutputStream target) throws IOException {
+		if (bytes == 0)
+			return;
+		output.flush();
+		FileChannel channel = source.getChannel();
+		while (bytes > 0) {
+			long copied = channel.transferTo(position, bytes, target.getChannel());
+			position += copied;
+			bytes -= copied;
+		}
+	}
+
+	/**
+	 * Method to pad a section of the index being written to a multiple of 8 bytes, so that no value of a mapped
+	 * file straddles two segments
+	 */
+	private static void pad(DataOutputStream output, long bytes) throws IOException {
+		for (long b = bytes; b < align(bytes); b++)
+			output.writeByte(0);
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Method to release the mapping of the stored index right away rather than when the segments are collected.
+	 * No stored row can be read afterwards.
+	 */
+	private void unmap() {
+		MappedByteBuffer[] mapped = segments;
+		segments = null;
+		MappedFiles.unmap(mapped);
+	}
+
+	private int getInt(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+	}
+
+	private long getLong(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+	}
+
+	private char getChar(long position) {
+		return segments[(int) (position >>> SEGMENT_SHIFT)].getChar((int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * @return the number of stored rows
+	 */
+	public int size() {
+		return rows;
+	}
+
+	/**
+	 * @return the number of stored rows read into the detector so far
+	 */
+	public int getLoadedRows() {
+		return loadedRows;
+	}
+
+	/**
+	 * @return the number of groups of the run that joined a reference group so far
+	 */
+	public int getJoinedGroups() {
+		return joinedGroups;
+	}
+
+	/**
+	 * @return the number of rows of the run recorded so far
+	 */
+	public int getRunRows() {
+		return runCount;
+	}
+
+	/**
+	 * @return the number of rows of the run recorded as copies of a stored row of their group so far
+	 */
+	public int getCopiedRows() {
+		return copiedRows;
+	}
+}
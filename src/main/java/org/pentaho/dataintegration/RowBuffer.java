@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleFileException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Keeps the input rows until they are written to the output, in input order.
+ *
+ * Rows are kept in memory until {@link #spill()} is called. From then on, all rows are serialized with the
+ * binary format of the input row metadata into a temporary file, with the offset of each row kept in an index.
+ * Once all rows were added, the file is mapped in memory and rows are read back from the mapping, so that the
+ * pages of the file are held by the operating system cache rather than by the heap.
+ */
+public class RowBuffer {
+
+	private static Class<?> PKG = DIDuplicateDetectionMeta.class; // for i18n purposes, needed by Translator2!!   $NON-NLS-1$
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int SEGMENT_SHIFT = 30; // The file is mapped in segments of 1 GB
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	private final RowMetaInterface rowMeta; // Metadata used to serialize the rows
+	private final File directory; // Directory of the spill file
+	private ArrayList<Object[]> rows; // Rows kept in memory, before spilling
+	private File file; // Spill file, null while the rows are kept in memory
+	private CountingOutputStream counter; // Counts the bytes written to the spill file
+	private DataOutputStream output;
+	private long[] offsets; // Position of each row in the spill file
+	private MappedInputStream mapped; // Reads the mapped spill file, null until the first row is read back
+	private DataInputStream input;
+	private int size; // Number of rows added
+	private int read; // Number of rows read back
+
+	/**
+	 * @param rowMeta the metadata of the input rows
+	 * @param directory the directory where the spill file is created
+	 */
+	public RowBuffer(RowMetaInterface rowMeta, File directory) {
+		this.rowMeta = rowMeta;
+		this.directory = directory;
+		this.rows = new ArrayList<Object[]>( 5000 );
+	}
+
+	/**
+	 * Method to add a row after the ones already buffered
+	 * @param row the input row
+	 */
+	public void add(Object[] row) throws KettleException {
+		if (file == null)
+			rows.add(row);
+		else
+			write(size, row);
+		size++;
+	}
+
+	/**
+	 * Method to move the rows kept in memory to the spill file, where all further rows are written
+	 */
+	public void spill() throws KettleException {
+		if (file != null)
+			return;
+		try {
+			file = File.createTempFile("di-dup-rows", ".bin", directory);
+			counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+			output = new DataOutputStream(counter);
+		} catch (IOException e) {
+			throw new KettleFileException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.CreateRowFile",
+					directory.getPath() ), e );
+		}
+		offsets = new long[Math.max(1024, rows.size())];
+		for (int i = 0; i < rows.size(); i++)
+			write(i, rows.get(i));
+		rows = null;
+	}
+
+	private void write(int index, Object[] row) throws KettleException {
+		if (index == offsets.length)
+			offsets = Arrays.copyOf(offsets, index * 2);
+		offsets[index] = counter.getCount();
+		rowMeta.writeData(output, row);
+	}
+
+	/**
+	 * Method to read the next row in input order, once all rows were added
+	 * @return the next input row
+	 */
+	public Object[] next() throws KettleException {
+		return get(read++);
+	}
+
+	/**
+	 * Method to read any row, once all rows were added. The first row read from the spill file closes it for
+	 * writing and maps it in memory.
+	 * @param row the number of the row in input order
+	 * @return the input row
+	 */
+	public Object[] get(int row) throws KettleException {
+		if (file == null)
+			return rows.get(row);
+		try {
+			if (mapped == null) {
+				output.close();
+				mapped = new MappedInputStream(file, counter.getCount());
+				input = new DataInputStream(mapped);
+			}
+			mapped.seek(offsets[row]);
+			return rowMeta.readData(input);
+		} catch (IOException e) {
+			throw new KettleFileException( BaseMessages.getString( PKG, "DIDuplicateDetection.Exception.ReadRowFile",
+					file.getPath() ), e );
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * Method to release the buffered rows and delete the spill file
+	 */
+	public void close() {
+		rows = null;
+		if (file == null)
+			return;
+		offsets = null;
+		if (mapped != null)
+			mapped.close();
+		mapped = null;
+		input = null;
+		try {
+			output.close();
+		} catch (IOException e) {
+			// The file is deleted anyway
+		}
+		// Windows only deletes the file once it is unmapped
+		file.delete();
+	}
+
+	/**
+	 * Method to estimate the heap used by an input row
+	 * @param row the input row
+	 * @return long with the estimated number of bytes
+	 */
+	public static long estimateBytes(Object[] row) {
+		long bytes = 16 + 4L * row.length;
+		for (Object value : row) {
+			if (value instanceof String)
+				bytes += 40 + 2L * ((String) value).length();
+			else if (value instanceof byte[])
+				bytes += 16 + ((byte[]) value).length;
+			else if (value != null)
+				bytes += 24;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Counts the bytes written to a stream. DataOutputStream also counts them, but in an int.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count; // Number of bytes written
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Reads a file mapped in memory from any position. Rows may cross the boundary between two segments.
+	 */
+	private static class MappedInputStream extends InputStream {
+
+		private MappedByteBuffer[] segments; // Null once closed
+		private final long length; // Size of the file
+		private long position; // Position of the next byte to read
+
+		MappedInputStream(File file, long length) throws IOException {
+			this.length = length;
+			segments = new MappedByteBuffer[(int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+			RandomAccessFile mappedFile = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = mappedFile.getChannel();
+				for (int s = 0; s < segments.length; s++) {
+					long start = (long) s << SEGMENT_SHIFT;
+					segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_MASK + 1, length - start));
+				}
+			} finally {
+				// The mappings stay valid once the channel is closed
+				mappedFile.close();
+			}
+		}
+
+		void seek(long position) {
+			this.position = position;
+		}
+
+		/**
+		 * Method to unmap the file, after which it cannot be read anymore
+		 */
+		@Override
+		public void close() {
+			MappedByteBuffer[] mapped = segments;
+			segments = null;
+			MappedFiles.unmap(mapped);
+		}
+
+		@Override
+		public int read() {
+			if (position >= length)
+				return -1;
+			int b = segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK)) & 0xFF;
+			position++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (position >= length)
+				return -1;
+			MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+			int start = (int) (position & SEGMENT_MASK);
+			// Stops at the end of the segment, DataInputStream reads the rest from the next one
+			int count = (int) Math.min(len, Math.min(segment.limit() - start, length - position));
+			segment.position(start);
+			segment.get(b, off, count);
+			position += count;
+			return count;
+		}
+	}
+}
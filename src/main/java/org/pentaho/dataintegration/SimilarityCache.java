@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of the similarity between pairs of rows, keyed by their row indexes.
+ *
+ * Entries are kept in primitive arrays organized in sets of a few ways. A pair can only be stored in the ways
+ * of the set its key hashes to, and when the set is full the entry to evict is chosen by a clock over the ways.
+ * Similarities computed against a threshold are only exact when they reach it, so each entry records whether
+ * its value is exact or an upper bound below the threshold.
+ */
+public class SimilarityCache {
+
+	private static final int WAYS = 4; // Number of entries per set
+	private static final long EMPTY = -1L; // Key of unused entries, row indexes are never negative
+	private static final byte REFERENCED = 1; // Entry was used since the clock last passed over it
+	private static final byte EXACT = 2; // Entry holds the exact similarity
+
+	private final long[] keys;
+	private final double[] values;
+	private final byte[] flags;
+	private final byte[] hands; // Clock hand of each set
+	private final int setMask;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param capacity the maximum number of pairs to keep, rounded down to a power of two
+	 */
+	public SimilarityCache(int capacity) {
+		int sets = Integer.highestOneBit(Math.max(1, capacity / WAYS));
+		setMask = sets - 1;
+		keys = new long[sets * WAYS];
+		values = new double[sets * WAYS];
+		flags = new byte[sets * WAYS];
+		hands = new byte[sets];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Method to obtain the exact similarity of a pair of rows
+	 * @param a index of the first row
+	 * @param b index of the second row
+	 * @return double with the cached similarity, or NaN if the exact value is not cached
+	 */
+	public double get(int a, int b) {
+		int slot = find(key(a, b));
+		if (slot >= 0 && (flags[slot] & EXACT) != 0) {
+			flags[slot] |= REFERENCED;
+			hits++;
+			return values[slot];
+		}
+		misses++;
+		return Double.NaN;
+	}
+
+	/**
+	 * Method to look up the exact similarity of a pair of rows for bookkeeping, without counting it as a hit or a
+	 * miss and without marking the entry as used
+	 * @param a index of the first row
+	 * @param b index of the second row
+	 * @return double with the cached similarity, or NaN if the exact value is not cached
+	 */
+	public double peek(int a, int b) {
+		int slot = find(key(a, b));
+		return slot >= 0 && (flags[slot] & EXACT) != 0 ? values[slot] : Double.NaN;
+	}
+
+	/**
+	 * Method to obtain the similarity of a pair of rows as needed to compare it against a threshold
+	 * @param a index of the first row
+	 * @param b index of the second row
+	 * @param threshold the threshold the similarity will be compared against
+	 * @return double with the exact similarity, or an upper bound of the similarity below the threshold, or NaN
+	 * if the pair is not cached
+	 */
+	public double get(int a, int b, double threshold) {
+		int slot = find(key(a, b));
+		if (slot >= 0 && ((flags[slot] & EXACT) != 0 || values[slot] < threshold)) {
+			flags[slot] |= REFERENCED;
+			hits++;
+			return values[slot];
+		}
+		misses++;
+		return Double.NaN;
+	}
+
+	/**
+	 * Method to store the similarity of a pair of rows
+	 * @param a index of the first row
+	 * @param b index of the second row
+	 * @param similarity the similarity of the pair
+	 * @param exact false if the similarity is only an upper bound
+	 */
+	public void put(int a, int b, double similarity, boolean exact) {
+		long key = key(a, b);
+		int slot = find(key);
+		if (slot < 0) {
+			int set = set(key);
+			slot = victim(set);
+			keys[slot] = key;
+		}
+		else if (!exact && (flags[slot] & EXACT) != 0)
+			return;
+		values[slot] = similarity;
+		flags[slot] = exact ? EXACT : 0;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	private int find(long key) {
+		int first = set(key) * WAYS;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			if (keys[slot] == key)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Method to choose the entry of a set that is replaced, preferring unused entries and otherwise the first
+	 * entry the clock finds not referenced since its last turn
+	 */
+	private int victim(int set) {
+		int first = set * WAYS;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			if (keys[slot] == EMPTY)
+				return slot;
+		}
+		int hand = hands[set];
+		while ((flags[first + hand] & REFERENCED) != 0) {
+			flags[first + hand] &= ~REFERENCED;
+			hand = (hand + 1) % WAYS;
+		}
+		hands[set] = (byte) ((hand + 1) % WAYS);
+		return first + hand;
+	}
+
+	private int set(long key) {
+		// Finalizer of MurmurHash3, spreads consecutive row indexes over all sets
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key & setMask;
+	}
+
+	/**
+	 * The similarity is symmetric, so both orders of a pair share the same key
+	 */
+	private static long key(int a, int b) {
+		if (a > b) {
+			int swap = a;
+			a = b;
+			b = swap;
+		}
+		return ((long) a << 32) | (b & 0xffffffffL);
+	}
+}
@@ -0,0 +1,465 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.Arrays;
+
+/**
+ * Needleman-Wunsch similarity used to compare records.
+ *
+ * Uses the same scoring as com.wcohen.ss.NeedlemanWunsch with its default settings (unit gap cost and a
+ * case-insensitive 0/-1 character score), so the absolute value of the alignment score is the edit distance
+ * between both strings. The normalized similarity is 1 - |score| / max(length), as computed by the step.
+ * The kernel also computes the Jaro-Winkler similarity of short fields compared on their own.
+ *
+ * Only two rows of the alignment matrix are kept, and they are reused between calls. When a threshold is
+ * given, only the diagonal band that can still reach it is computed. Wide bands are handed over to the vectorized
+ * {@link BandedAligner} of the di-duplicate-detection-vector jar when it is deployed with the step and the JVM
+ * runs with the jdk.incubator.vector module, and are otherwise computed one cell at a time. An instance is not
+ * thread-safe, use {@link #forCurrentThread()} to obtain the kernel of the calling thread.
+ */
+public class SimilarityKernel {
+
+	private static final int COUNT_MASK = 63; // Characters are counted in 64 buckets of their low bits
+	private static final String VECTOR_ALIGNER = "org.pentaho.dataintegration.vector.VectorBandedAligner";
+	private static final Class<? extends BandedAligner> VECTOR_ALIGNER_CLASS = findVectorAligner();
+	private static final ThreadLocal<SimilarityKernel> KERNELS = new ThreadLocal<SimilarityKernel>() {
+		protected SimilarityKernel initialValue() {
+			return new SimilarityKernel();
+		}
+	};
+
+	private int[] previousRow = new int[64]; // Row i - 1 of the alignment matrix
+	private int[] currentRow = new int[64]; // Row i of the alignment matrix
+	private char[] source = new char[64]; // Lower case copy of the first string
+	private char[] target = new char[64]; // Lower case copy of the second string
+	private boolean[] sourceMatched = new boolean[64]; // Characters of the first string matched by Jaro-Winkler
+	private boolean[] targetMatched = new boolean[64]; // Characters of the second string matched by Jaro-Winkler
+	private final int[] probeCounts = new int[COUNT_MASK + 1]; // Characters of the key aligned with a batch
+	private final int[] countDifferences = new int[COUNT_MASK + 1]; // Probe counts minus the counts of a target
+	private final BandedAligner vectorAligner; // Aligner of the wide bands, null when vectors are not supported
+	private long alignments; // Number of pairs aligned
+	private long lengthPrunes; // Number of pairs rejected by their length difference alone
+	private long countPrunes; // Number of pairs of a batch rejected by their character counts
+	private long earlyExits; // Number of alignments stopped before the last row
+
+	public SimilarityKernel() {
+		vectorAligner = createVectorAligner();
+	}
+
+	/**
+	 * Method to obtain the kernel owned by the calling thread
+	 * @return SimilarityKernel that can be used without synchronization by the calling thread
+	 */
+	public static SimilarityKernel forCurrentThread() {
+		return KERNELS.get();
+	}
+
+	/**
+	 * Method to compute the exact normalized similarity between two strings
+	 * @param a String to compare
+	 * @param b String to compare
+	 * @return double corresponding to 1 - distance / max(length)
+	 */
+	public double similarity(String a, String b) {
+		return similarity(a, b, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Method to compute the normalized similarity between two strings, stopping as soon as it can no longer
+	 * reach the threshold
+	 * @param a String to compare
+	 * @param b String to compare
+	 * @param threshold the minimum similarity of interest
+	 * @return double with the exact similarity when it is at least the threshold, or otherwise an upper bound
+	 * of the similarity that is below the threshold
+	 */
+	public double similarity(String a, String b, double threshold) {
+		source = load(a, source);
+		target = load(b, target);
+		return similarity(source, a.length(), target, b.length(), threshold);
+	}
+
+	/**
+	 * Method to compute the normalized similarity between two keys of an arena, stopping as soon as it can no
+	 * longer reach the threshold
+	 * @param keys the arena holding the keys
+	 * @param a the id of the first key
+	 * @param b the id of the second key
+	 * @param threshold the minimum similarity of interest
+	 * @return double with the exact similarity when it is at least the threshold, or otherwise an upper bound
+	 * of the similarity that is below the threshold
+	 */
+	public double similarity(KeyArena keys, int a, int b, double threshold) {
+		source = load(keys, a, source);
+		target = load(keys, b, target);
+		return similarity(source, keys.length(a), target, keys.length(b), threshold);
+	}
+
+	/**
+	 * Method to compute the normalized similarities between a key of an arena and several others, loading and
+	 * counting the characters of the first key once for all of them. Each character added or removed costs an
+	 * edit, so keys whose character counts differ by more than the distance allowed by the threshold are rejected
+	 * without aligning them.
+	 * @param keys the arena holding the keys
+	 * @param probe the id of the key compared with all the others
+	 * @param targets the ids of the other keys
+	 * @param count the number of other keys
+	 * @param threshold the minimum similarity of interest
+	 * @param untilMiss true to stop after the first key whose similarity is below the threshold
+	 * @param similarities double array receiving the similarity to each key, exact when it is at least the
+	 * threshold, or otherwise an upper bound of the similarity that is below the threshold
+	 * @return int corresponding to the number of similarities computed
+	 */
+	public int similarities(KeyArena keys, int probe, int[] targets, int count, double threshold, boolean untilMiss,
+			double[] similarities) {
+		return similarities(keys, probe, targets, 0, count, threshold, untilMiss, similarities);
+	}
+
+	/**
+	 * Method to compute the normalized similarities between a key of an arena and a range of others, so that a
+	 * long batch can be split to check for a stop between its parts
+	 * @param keys the arena holding the keys
+	 * @param probe the id of the key compared with all the others
+	 * @param targets the ids of the other keys
+	 * @param from the position in targets of the first key
+	 * @param to the position in targets after the last key
+	 * @param threshold the minimum similarity of interest
+	 * @param untilMiss true to stop after the first key whose similarity is below the threshold
+	 * @param similarities double array receiving the similarity to each key at the same position as the key
+	 * @return int corresponding to the position after the last similarity computed
+	 */
+	public int similarities(KeyArena keys, int probe, int[] targets, int from, int to, double threshold,
+			boolean untilMiss, double[] similarities) {
+		source = load(keys, probe, source);
+		int probeLength = keys.length(probe);
+		Arrays.fill(probeCounts, 0);
+		for (int i = 0; i < probeLength; i++)
+			probeCounts[source[i] & COUNT_MASK]++;
+		for (int t = from; t < to; t++) {
+			int targetLength = keys.length(targets[t]);
+			int maxLength = Math.max(probeLength, targetLength);
+			int maxDistance = maxDistance(maxLength, threshold);
+			target = load(keys, targets[t], target);
+			int distance = maxDistance >= 0 && Math.abs(probeLength - targetLength) <= maxDistance
+					? countDistance(targetLength) : 0;
+			if (distance > maxDistance)
+				countPrunes++;
+			else
+				distance = distance(source, probeLength, target, targetLength, maxDistance);
+			similarities[t] = maxLength == 0 ? Double.NaN : 1 - (double) distance / maxLength;
+			if (untilMiss && !(similarities[t] >= threshold))
+				return t + 1;
+		}
+		return to;
+	}
+
+	/**
+	 * Method to compute the Jaro-Winkler similarity between two keys of an arena, ignoring case. Common prefixes
+	 * of up to 4 characters raise the Jaro similarity with the usual scaling factor of 0.1.
+	 * @param keys the arena holding the keys
+	 * @param a the id of the first key
+	 * @param b the id of the second key
+	 * @return double between 0 and 1, 1 when both keys are equal
+	 */
+	public double jaroWinkler(KeyArena keys, int a, int b) {
+		int aLength = keys.length(a);
+		int bLength = keys.length(b);
+		if (aLength == 0 || bLength == 0)
+			return aLength == bLength ? 1 : 0;
+		source = load(keys, a, source);
+		target = load(keys, b, target);
+		if (sourceMatched.length < aLength)
+			sourceMatched = new boolean[Math.max(aLength, sourceMatched.length * 2)];
+		if (targetMatched.length < bLength)
+			targetMatched = new boolean[Math.max(bLength, targetMatched.length * 2)];
+		Arrays.fill(sourceMatched, 0, aLength, false);
+		Arrays.fill(targetMatched, 0, bLength, false);
+		// Characters match when they are equal and no further apart than half the longest key
+		int range = Math.max(0, Math.max(aLength, bLength) / 2 - 1);
+		int matches = 0;
+		for (int i = 0; i < aLength; i++) {
+			int to = Math.min(bLength, i + range + 1);
+			for (int j = Math.max(0, i - range); j < to; j++) {
+				if (!targetMatched[j] && source[i] == target[j]) {
+					sourceMatched[i] = true;
+					targetMatched[j] = true;
+					matches++;
+					break;
+				}
+			}
+		}
+		if (matches == 0)
+			return 0;
+		int transpositions = 0;
+		for (int i = 0, j = 0; i < aLength; i++) {
+			if (!sourceMatched[i])
+				continue;
+			while (!targetMatched[j])
+				j++;
+			if (source[i] != target[j++])
+				transpositions++;
+		}
+		double jaro = ((double) matches / aLength + (double) matches / bLength
+				+ (matches - transpositions / 2.0) / matches) / 3;
+		int prefix = 0;
+		while (prefix < Math.min(4, Math.min(aLength, bLength)) && source[prefix] == target[prefix])
+			prefix++;
+		return jaro + prefix * 0.1 * (1 - jaro);
+	}
+
+	/**
+	 * Method to compute the normalized similarity between two lower case character sequences, stopping as soon
+	 * as it can no longer reach the threshold
+	 * @param a char array with the lower case characters of the first string
+	 * @param aLength number of characters of a to compare
+	 * @param b char array with the lower case characters of the second string
+	 * @param bLength number of characters of b to compare
+	 * @param threshold the minimum similarity of interest
+	 * @return double with the exact similarity when it is at least the threshold, or otherwise an upper bound
+	 * of the similarity that is below the threshold
+	 */
+	public double similarity(char[] a, int aLength, char[] b, int bLength, double threshold) {
+		int maxLength = Math.max(aLength, bLength);
+		if (maxLength == 0)
+			return Double.NaN; // Same result as 1 - 0 / 0, never above the threshold
+		int distance = distance(a, aLength, b, bLength, maxDistance(maxLength, threshold));
+		return 1 - (double) distance / maxLength;
+	}
+
+	/**
+	 * Method to compute the edit distance between two lower case character sequences
+	 *
+	 * Pairs whose length difference alone exceeds maxDistance are rejected without aligning them. Otherwise only
+	 * the diagonal band of width maxDistance is computed, since any alignment leaving the band costs more than
+	 * maxDistance, which makes the cost O(length * maxDistance).
+	 * @param a char array with the lower case characters of the first string
+	 * @param aLength number of characters of a to compare
+	 * @param b char array with the lower case characters of the second string
+	 * @param bLength number of characters of b to compare
+	 * @param maxDistance the largest distance of interest
+	 * @return int with the exact distance when it is at most maxDistance, or otherwise a lower bound of the
+	 * distance that is above maxDistance
+	 */
+	public int distance(char[] a, int aLength, char[] b, int bLength, int maxDistance) {
+		if (maxDistance < 0)
+			return 0;
+		int lengthDifference = Math.abs(aLength - bLength);
+		if (lengthDifference > maxDistance) {
+			lengthPrunes++;
+			return lengthDifference;
+		}
+		alignments++;
+		int band = Math.min(maxDistance, Math.max(aLength, bLength));
+		if (vectorAligner != null && band >= vectorAligner.getMinimumBand()) {
+			int distance = vectorAligner.distance(a, aLength, b, bLength, band, maxDistance);
+			if (distance >= 0)
+				return distance;
+			earlyExits++;
+			return ~distance;
+		}
+		if (previousRow.length <= bLength + 1) {
+			previousRow = new int[bLength + 2];
+			currentRow = new int[bLength + 2];
+		}
+		int[] previous = previousRow;
+		int[] current = currentRow;
+		int outside = band + 1; // Stands for every cell outside the band, all of them cost more than maxDistance
+		for (int j = 0; j <= Math.min(bLength, band); j++)
+			previous[j] = j;
+		if (band < bLength)
+			previous[band + 1] = outside;
+		for (int i = 1; i <= aLength; i++) {
+			char c = a[i - 1];
+			int from = Math.max(1, i - band);
+			int to = Math.min(bLength, i + band);
+			current[from - 1] = from == 1 ? i : outside;
+			int rowMin = current[from - 1];
+			for (int j = from; j <= to; j++) {
+				int cost = previous[j - 1] + (c == b[j - 1] ? 0 : 1);
+				if (previous[j] + 1 < cost)
+					cost = previous[j] + 1;
+				if (current[j - 1] + 1 < cost)
+					cost = current[j - 1] + 1;
+				current[j] = cost;
+				if (cost < rowMin)
+					rowMin = cost;
+			}
+			if (to < bLength)
+				current[to + 1] = outside;
+			// Every alignment crosses this row and costs never decrease along an alignment
+			if (rowMin > maxDistance) {
+				earlyExits++;
+				return rowMin;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[bLength];
+	}
+
+	/**
+	 * Method to obtain a lower bound of the edit distance between the probe of a batch and the target loaded
+	 * @param targetLength number of characters of the target
+	 * @return int corresponding to the largest of the characters of the probe missing from the target and the
+	 * characters of the target missing from the probe, counted by bucket
+	 */
+	private int countDistance(int targetLength) {
+		System.arraycopy(probeCounts, 0, countDifferences, 0, probeCounts.length);
+		for (int j = 0; j < targetLength; j++)
+			countDifferences[target[j] & COUNT_MASK]--;
+		int missing = 0;
+		int extra = 0;
+		for (int i = 0; i < countDifferences.length; i++) {
+			if (countDifferences[i] > 0)
+				missing += countDifferences[i];
+			else
+				extra -= countDifferences[i];
+		}
+		return Math.max(missing, extra);
+	}
+
+	/**
+	 * Method to reset the alignment counters of the kernel
+	 */
+	public void resetCounters() {
+		alignments = 0;
+		lengthPrunes = 0;
+		countPrunes = 0;
+		earlyExits = 0;
+	}
+
+	/**
+	 * Method to add the work of other kernels to the alignment counters of the kernel
+	 * @param alignments the number of pairs aligned
+	 * @param lengthPrunes the number of pairs rejected by their length difference
+	 * @param countPrunes the number of pairs rejected by their character counts
+	 * @param earlyExits the number of alignments stopped before the last row
+	 */
+	public void addCounters(long alignments, long lengthPrunes, long countPrunes, long earlyExits) {
+		this.alignments += alignments;
+		this.lengthPrunes += lengthPrunes;
+		this.countPrunes += countPrunes;
+		this.earlyExits += earlyExits;
+	}
+
+	public long getAlignments() {
+		return alignments;
+	}
+
+	public long getLengthPrunes() {
+		return lengthPrunes;
+	}
+
+	public long getCountPrunes() {
+		return countPrunes;
+	}
+
+	public long getEarlyExits() {
+		return earlyExits;
+	}
+
+	/**
+	 * @return true if the wide bands are aligned with vector instructions
+	 */
+	public boolean isVectorized() {
+		return vectorAligner != null;
+	}
+
+	/**
+	 * Method to obtain the largest distance whose normalized similarity still satisfies the threshold
+	 * @param maxLength the length of the longest of the two strings
+	 * @param threshold the minimum similarity of interest
+	 * @return int corresponding to the largest distance d such that 1 - d / maxLength >= threshold, or -1 if
+	 * there is no such distance
+	 */
+	public static int maxDistance(int maxLength, double threshold) {
+		if (threshold <= 0)
+			return maxLength;
+		int distance = (int) Math.min(maxLength, Math.floor((1 - threshold) * maxLength));
+		if (distance < -1)
+			distance = -1;
+		// Settle floating point rounding with the exact expression used to compare against the threshold
+		while (distance < maxLength && 1 - (double) (distance + 1) / maxLength >= threshold)
+			distance++;
+		while (distance >= 0 && !(1 - (double) distance / maxLength >= threshold))
+			distance--;
+		return distance;
+	}
+
+	/**
+	 * Method to find the vectorized aligner, which is only loaded when its jar is on the class path of the step and
+	 * the JVM provides the jdk.incubator.vector module
+	 * @return the class of the aligner, or null to align every band one cell at a time
+	 */
+	private static Class<? extends BandedAligner> findVectorAligner() {
+		try {
+			Class<? extends BandedAligner> type = Class.forName(VECTOR_ALIGNER).asSubclass(BandedAligner.class);
+			type.newInstance();
+			return type;
+		} catch (Exception | LinkageError e) {
+			// Missing jar, JVM older than 16 or started without --add-modules jdk.incubator.vector
+			return null;
+		}
+	}
+
+	private static BandedAligner createVectorAligner() {
+		if (VECTOR_ALIGNER_CLASS == null)
+			return null;
+		try {
+			return VECTOR_ALIGNER_CLASS.newInstance();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Method to copy the lower case characters of a String into a reusable buffer
+	 * @param s String to copy
+	 * @param buffer char array to reuse if large enough
+	 * @return char array holding the lower case characters of s
+	 */
+	static char[] load(String s, char[] buffer) {
+		int length = s.length();
+		if (buffer.length < length)
+			buffer = new char[Math.max(length, buffer.length * 2)];
+		s.getChars(0, length, buffer, 0);
+		for (int i = 0; i < length; i++)
+			buffer[i] = Character.toLowerCase(buffer[i]);
+		return buffer;
+	}
+
+	/**
+	 * Method to copy the lower case characters of a key of an arena into a reusable buffer
+	 * @param keys the arena holding the key
+	 * @param id the id of the key
+	 * @param buffer char array to reuse if large enough
+	 * @return char array holding the lower case characters of the key
+	 */
+	static char[] load(KeyArena keys, int id, char[] buffer) {
+		int length = keys.length(id);
+		if (buffer.length < length)
+			buffer = new char[Math.max(length, buffer.length * 2)];
+		keys.getChars(id, buffer);
+		for (int i = 0; i < length; i++)
+			buffer[i] = Character.toLowerCase(buffer[i]);
+		return buffer;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+import java.util.Arrays;
+
+/**
+ * Groups of approximate duplicates, kept as a union-find over the row ids 0 to size - 1.
+ *
+ * Unions are by rank with path compression. The members of each group are linked in a circular list through
+ * the next array, so that a group can be walked in time proportional to its size. The representative of a
+ * group is its member added first, which is the first row of the group in the input, whichever element is the
+ * root of the tree. That is its smallest row id, unless the elements of groups no longer read were reused.
+ */
+public class UnionFind {
+
+	private int[] parent; // Parent of each element, roots are their own parent
+	private int[] rank; // Upper bound of the height of the tree of each root
+	private int[] next; // Next member of the group of each element, in a circular list
+	private int[] size; // Number of members of the group of each root
+	private int[] representative; // Member added first of the group of each root
+	private int[] order; // Number of elements added before each element, null until an element is reused
+	private int count; // Number of elements
+	private int added; // Number of elements added, counting those reused
+
+	/**
+	 * @param capacity the expected number of elements
+	 */
+	public UnionFind(int capacity) {
+		capacity = Math.max(16, capacity);
+		parent = new int[capacity];
+		rank = new int[capacity];
+		next = new int[capacity];
+		size = new int[capacity];
+		representative = new int[capacity];
+	}
+
+	/**
+	 * Method to add an element in a group of its own
+	 * @return int corresponding to the id of the new element
+	 */
+	public int add() {
+		if (count == parent.length) {
+			int capacity = count * 2;
+			parent = Arrays.copyOf(parent, capacity);
+			rank = Arrays.copyOf(rank, capacity);
+			next = Arrays.copyOf(next, capacity);
+			size = Arrays.copyOf(size, capacity);
+			representative = Arrays.copyOf(representative, capacity);
+			if (order != null)
+				order = Arrays.copyOf(order, capacity);
+		}
+		int x = count++;
+		if (order != null)
+			order[x] = added;
+		added++;
+		parent[x] = x;
+		next[x] = x;
+		size[x] = 1;
+		representative[x] = x;
+		return x;
+	}
+
+	/**
+	 * Method to put an element back in a group of its own, as if it was added last. The other members of its
+	 * group must not be read until they are reused as well.
+	 * @param x the element
+	 */
+	public void reuse(int x) {
+		if (order == null) {
+			order = new int[parent.length];
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+		}
+		order[x] = added++;
+		parent[x] = x;
+		rank[x] = 0;
+		next[x] = x;
+		size[x] = 1;
+		representative[x] = x;
+	}
+
+	/**
+	 * Method to obtain the root of the tree of an element
+	 * @param x the element
+	 * @return int corresponding to the root
+	 */
+	public int find(int x) {
+		int root = x;
+		while (parent[root] != root)
+			root = parent[root];
+		while (parent[x] != root) {
+			int up = parent[x];
+			parent[x] = root;
+			x = up;
+		}
+		return root;
+	}
+
+	/**
+	 * Method to merge the groups of two elements
+	 * @param a an element of the first group
+	 * @param b an element of the second group
+	 * @return int corresponding to the root of the merged group
+	 */
+	public int union(int a, int b) {
+		int x = find(a);
+		int y = find(b);
+		if (x == y)
+			return x;
+		if (rank[x] < rank[y]) {
+			int swap = x;
+			x = y;
+			y = swap;
+		}
+		parent[y] = x;
+		if (rank[x] == rank[y])
+			rank[x]++;
+		size[x] += size[y];
+		if (order(representative[y]) < order(representative[x]))
+			representative[x] = representative[y];
+		// Splice both circular lists of members into one
+		int swap = next[x];
+		next[x] = next[y];
+		next[y] = swap;
+		return x;
+	}
+
+	/**
+	 * Method to obtain the representative of the group of an element
+	 * @param x the element
+	 * @return int corresponding to the member of the group added first
+	 */
+	public int representative(int x) {
+		return representative[find(x)];
+	}
+
+	/**
+	 * Method to obtain the number of members of the group of an element
+	 * @param x the element
+	 * @return int corresponding to the size of the group
+	 */
+	public int size(int x) {
+		return size[find(x)];
+	}
+
+	/**
+	 * Method to walk the members of a group. Starting from any member, following next visits every member of
+	 * its group once before coming back to it.
+	 * @param x a member of the group
+	 * @return int corresponding to the next member of the group
+	 */
+	public int next(int x) {
+		return next[x];
+	}
+
+	/**
+	 * @param x the element
+	 * @return the number of elements added before it, counting those reused, which is the element itself until
+	 * an element is reused
+	 */
+	public int order(int x) {
+		return order != null ? order[x] : x;
+	}
+
+	/**
+	 * @return the number of elements
+	 */
+	public int count() {
+		return count;
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Members of a group that a row must match, besides the representative, before it joins the group.
+ */
+public enum VerificationPolicy {
+	ALL("all"), // Every member, the cost of a merge grows with the size of the group
+	REPRESENTATIVE("representative"), // The representative only, groups may drift along chains of similar rows
+	SAMPLE("sample"), // A fixed number of members spread over the group
+	MEDOID("medoid"); // The member most similar to the others in a sample of the group, chosen again as it doubles
+
+	private final String code; // Name of the policy in the step XML
+
+	private VerificationPolicy(String code) {
+		this.code = code;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * Method to obtain a verification policy from its name in the step XML
+	 * @param code the name of the policy
+	 * @return VerificationPolicy with that name, or ALL if there is none
+	 */
+	public static VerificationPolicy getFromCode(String code) {
+		for (VerificationPolicy policy : values()) {
+			if (policy.code.equalsIgnoreCase(code))
+				return policy;
+		}
+		return ALL;
+	}
+}
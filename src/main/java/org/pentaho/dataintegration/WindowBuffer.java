@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration;
+
+/**
+ * Window of the sorted neighbourhood passes: the row ids of the most recent groups, most recent first.
+ *
+ * The entries live in fixed slots of primitive arrays, linked in a ring from the most recent to the oldest
+ * entry, with the free slots on a separate list. Adding an entry at the front, moving an entry to the front and
+ * removing the oldest entry only relink slots, so the window never allocates once created.
+ *
+ * Entries are walked from {@link #first()} with {@link #next(int)}, which return slots, and read or replaced
+ * in place with {@link #get(int)} and {@link #set(int, int)}.
+ * Slots are numbered from 0 to the capacity - 1, and an entry keeps its slot until it is removed, so that
+ * callers can keep data of their own by slot.
+ */
+public class WindowBuffer {
+
+	private static final int NONE = -1;
+
+	private final int[] ids; // Row id of each slot
+	private final int[] next; // Next older slot of each slot in the ring, or next free slot
+	private final int[] previous; // Next more recent slot of each slot in the ring
+	private int head = NONE; // Slot of the most recent entry
+	private int free; // First free slot
+	private int size;
+
+	/**
+	 * @param capacity the largest number of entries
+	 */
+	public WindowBuffer(int capacity) {
+		ids = new int[capacity];
+		next = new int[capacity];
+		previous = new int[capacity];
+		clear();
+	}
+
+	/**
+	 * Method to remove all the entries
+	 */
+	public void clear() {
+		for (int slot = 0; slot < ids.length; slot++)
+			next[slot] = slot + 1 < ids.length ? slot + 1 : NONE;
+		free = ids.length > 0 ? 0 : NONE;
+		head = NONE;
+		size = 0;
+	}
+
+	/**
+	 * Method to add an entry as the most recent one
+	 * @param id the row id
+	 */
+	public void addFirst(int id) {
+		if (free == NONE)
+			throw new IllegalStateException("Window is full");
+		int slot = free;
+		free = next[slot];
+		ids[slot] = id;
+		link(slot);
+		size++;
+	}
+
+	/**
+	 * Method to remove the oldest entry
+	 * @return int corresponding to the row id of the entry
+	 */
+	public int removeLast() {
+		int slot = previous[head];
+		unlink(slot);
+		next[slot] = free;
+		free = slot;
+		size--;
+		return ids[slot];
+	}
+
+	/**
+	 * Method to make an entry the most recent one
+	 * @param slot the slot of the entry
+	 */
+	public void moveToFront(int slot) {
+		if (slot == head)
+			return;
+		unlink(slot);
+		link(slot);
+	}
+
+	/**
+	 * @return the slot of the most recent entry, or -1 if the window is empty
+	 */
+	public int first() {
+		return head;
+	}
+
+	/**
+	 * @param slot the slot of an entry
+	 * @return the slot of the next older entry, or -1 after the oldest entry
+	 */
+	public int next(int slot) {
+		int older = next[slot];
+		return older == head ? NONE : older;
+	}
+
+	public int get(int slot) {
+		return ids[slot];
+	}
+
+	public void set(int slot, int id) {
+		ids[slot] = id;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	private void link(int slot) {
+		if (head == NONE) {
+			next[slot] = slot;
+			previous[slot] = slot;
+		} else {
+			int last = previous[head];
+			next[slot] = head;
+			previous[slot] = last;
+			previous[head] = slot;
+			next[last] = slot;
+		}
+		head = slot;
+	}
+
+	private void unlink(int slot) {
+		if (next[slot] == slot) {
+			head = NONE;
+			return;
+		}
+		next[previous[slot]] = next[slot];
+		previous[next[slot]] = previous[slot];
+		if (slot == head)
+			head = next[slot];
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.pentaho.dataintegration.vector;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import org.pentaho.dataintegration.BandedAligner;
+
+/**
+ * Banded edit distance computing a row of the band several cells at a time with the JDK Vector API.
+ *
+ * Each cell of a row is the smallest of the diagonal cell plus the character cost, the cell above plus one and the
+ * cell on its left plus one. The first two only depend on the previous row and are computed a vector at a time.
+ * The cell on the left is folded in with a prefix minimum: cell j is j plus the smallest value of cell k minus k
+ * for k up to j, which a vector computes in log2(lanes) shifts, carrying the minimum from one vector to the next.
+ * The rows, the band and the cells outside it are those of the scalar kernel, so the distances are equal.
+ */
+public class VectorBandedAligner implements BandedAligner {
+
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	private static final int LANES = SPECIES.length();
+	private static final IntVector INDEXES = IntVector.zero(SPECIES).addIndex(1); // 0, 1, 2... in the lanes
+	private static final IntVector NONE = IntVector.broadcast(SPECIES, Integer.MAX_VALUE); // Neutral for minimums
+
+	private int[] previousRow = new int[64]; // Row i - 1 of the alignment matrix
+	private int[] currentRow = new int[64]; // Row i of the alignment matrix
+	private int[] target = new int[64]; // Characters of the second string, widened to the lanes of the vectors
+
+	public int getMinimumBand() {
+		// Below a few vectors per row, the prefix minimum costs more than the cells it saves
+		return 2 * LANES;
+	}
+
+	public int distance(char[] a, int aLength, char[] b, int bLength, int band, int maxDistance) {
+		// Vectors read and write up to a whole vector past the last cell of a row
+		if (previousRow.length < bLength + 2 + LANES) {
+			previousRow = new int[bLength + 2 + LANES];
+			currentRow = new int[bLength + 2 + LANES];
+			target = new int[bLength + LANES];
+		}
+		for (int j = 0; j < bLength; j++)
+			target[j] = b[j];
+		int[] previous = previousRow;
+		int[] current = currentRow;
+		int outside = band + 1; // Stands for every cell outside the band, all of them cost more than maxDistance
+		for (int j = 0; j <= Math.min(bLength, band); j++)
+			previous[j] = j;
+		if (band < bLength)
+			previous[band + 1] = outside;
+		for (int i = 1; i <= aLength; i++) {
+			int c = a[i - 1];
+			int from = Math.max(1, i - band);
+			int to = Math.min(bLength, i + band);
+			current[from - 1] = from == 1 ? i : outside;
+			int rowMin = current[from - 1];
+			int carry = current[from - 1] - (from - 1); // Smallest cell minus its index so far
+			for (int j = from; j <= to; j += LANES) {
+				IntVector diagonal = IntVector.fromArray(SPECIES, previous, j - 1)
+						.add(1, IntVector.fromArray(SPECIES, target, j - 1).compare(VectorOperators.NE, c));
+				IntVector cost = diagonal.min(IntVector.fromArray(SPECIES, previous, j).add(1));
+				IntVector indexes = INDEXES.add(j);
+				IntVector relative = cost.sub(indexes);
+				for (int shift = 1; shift < LANES; shift <<= 1)
+					relative = relative.min(NONE.slice(LANES - shift, relative));
+				relative = relative.min(carry);
+				IntVector cells = relative.add(indexes);
+				cells.intoArray(current, j);
+				carry = relative.lane(LANES - 1);
+				rowMin = Math.min(rowMin, cells.reduceLanes(VectorOperators.MIN, SPECIES.indexInRange(j, to + 1)));
+			}
+			if (to < bLength)
+				current[to + 1] = outside;
+			// Every alignment crosses this row and costs never decrease along an alignment
+			if (rowMin > maxDistance)
+				return ~rowMin;
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[bLength];
+	}
+}